@@ -4,15 +4,15 @@ import com.lmax.disruptor.EventHandler;
 
 class EventHolderUnwrapper<T> implements EventHandler<EventHolder<T>>
 {
-    private final FullUpdateBuilder<T> fullUpdateBuilder;
+    private final EventHandler<T> handler;
 
-    public EventHolderUnwrapper(final FullUpdateBuilder<T> fullUpdateBuilder)
+    public EventHolderUnwrapper(final EventHandler<T> handler)
     {
-        this.fullUpdateBuilder = fullUpdateBuilder;
+        this.handler = handler;
     }
 
     public void onEvent(final EventHolder<T> event, final long sequence, final boolean endOfBatch) throws Exception
     {
-        fullUpdateBuilder.onEvent(event.getEvent(), sequence, endOfBatch);
+        handler.onEvent(event.getEvent(), sequence, endOfBatch);
     }
 }
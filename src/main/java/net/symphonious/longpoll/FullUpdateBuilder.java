@@ -13,10 +13,12 @@ import com.lmax.disruptor.EventHandler;
  * it will be concurrently read by multiple other threads. As such, the update mechanism must be thread safe in the
  * face of concurrent reads, but not necessarily concurrent writes.</p>
  *
+ * <p>When coalescing on a single thread limits publish throughput, see {@link ShardedFullUpdateBuilder}.</p>
+ *
  * @param <T> the type of notification this update builder consumes.
  * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
  */
-public interface FullUpdateBuilder<T> extends EventHandler<T>
+public interface FullUpdateBuilder<T> extends EventHandler<T>, FullUpdateSource<T>
 {
     T getFullUpdate();
 }
@@ -0,0 +1,32 @@
+package net.symphonious.longpoll;
+
+/**
+ * One partition of the state maintained by a {@link ShardedFullUpdateBuilder}. Each shard is driven by its own event
+ * processor and only receives the notifications whose key maps to it.
+ *
+ * <p>Both methods are only ever called from the shard's own event processor thread, so the shard's working state needs
+ * no synchronization. Snapshots however are read concurrently by request threads and must not be modified once returned
+ * from {@link #snapshot()}.</p>
+ *
+ * @param <T> the type of notification this shard consumes.
+ * @param <S> the type of snapshot this shard produces.
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public interface FullUpdateShard<T, S>
+{
+    /**
+     * Apply a notification belonging to this shard to the shard's state.
+     *
+     * @param notification the notification to apply.
+     * @param sequence the sequence number of the notification.
+     * @throws Exception if the notification could not be applied.
+     */
+    void onEvent(T notification, long sequence) throws Exception;
+
+    /**
+     * Create an immutable snapshot of the shard's current state.
+     *
+     * @return the snapshot.
+     */
+    S snapshot();
+}
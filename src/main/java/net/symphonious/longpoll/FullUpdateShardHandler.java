@@ -0,0 +1,96 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+
+class FullUpdateShardHandler<T extends SequencedNotification, S> implements EventHandler<EventHolder<T>>
+{
+    private final ShardedFullUpdateBuilder<T, S> builder;
+    private final FullUpdateShard<T, S> shard;
+    private final int shardIndex;
+    private volatile Snapshot<S> latestSnapshot;
+    private volatile long checkpoint = -1;
+    private boolean changedSinceSnapshot;
+
+    public FullUpdateShardHandler(final ShardedFullUpdateBuilder<T, S> builder, final FullUpdateShard<T, S> shard, final int shardIndex)
+    {
+        this.builder = builder;
+        this.shard = shard;
+        this.shardIndex = shardIndex;
+        latestSnapshot = new Snapshot<S>(-1, shard.snapshot(), null);
+    }
+
+    public void onEvent(final EventHolder<T> event, final long sequence, final boolean endOfBatch) throws Exception
+    {
+        final T notification = event.getEvent();
+        if (builder.getShardIndex(notification) == shardIndex)
+        {
+            shard.onEvent(notification, sequence);
+            changedSinceSnapshot = true;
+        }
+
+        if (builder.isCheckpoint(sequence))
+        {
+            if (changedSinceSnapshot)
+            {
+                latestSnapshot = new Snapshot<S>(sequence, shard.snapshot(), latestSnapshot);
+                changedSinceSnapshot = false;
+                discardSnapshotsBefore(builder.getCheckpointSequence());
+            }
+            // Publish the checkpoint only after the snapshot so readers always find a snapshot covering it.
+            checkpoint = sequence;
+        }
+    }
+
+    public long getCheckpoint()
+    {
+        return checkpoint;
+    }
+
+    /**
+     * Get the snapshot representing this shard's state at <i>sequence</i>.
+     *
+     * @param sequence a checkpoint this shard has reached.
+     * @return the snapshot or <tt>null</tt> if it has already been discarded.
+     */
+    public Snapshot<S> getSnapshotAt(final long sequence)
+    {
+        Snapshot<S> snapshot = latestSnapshot;
+        while (snapshot != null && snapshot.sequence > sequence)
+        {
+            snapshot = snapshot.previous;
+        }
+        return snapshot;
+    }
+
+    private void discardSnapshotsBefore(final long sequence)
+    {
+        Snapshot<S> snapshot = latestSnapshot;
+        while (snapshot != null && snapshot.sequence > sequence)
+        {
+            snapshot = snapshot.previous;
+        }
+        if (snapshot != null)
+        {
+            snapshot.previous = null;
+        }
+    }
+
+    static class Snapshot<S>
+    {
+        private final long sequence;
+        private final S state;
+        private volatile Snapshot<S> previous;
+
+        private Snapshot(final long sequence, final S state, final Snapshot<S> previous)
+        {
+            this.sequence = sequence;
+            this.state = state;
+            this.previous = previous;
+        }
+
+        public S getState()
+        {
+            return state;
+        }
+    }
+}
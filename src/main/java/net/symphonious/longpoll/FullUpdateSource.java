@@ -0,0 +1,22 @@
+package net.symphonious.longpoll;
+
+/**
+ * Source of the full update notification sent to newly connecting clients and to clients which fall too far behind the
+ * latest notifications.
+ *
+ * <p>{@link #getFullUpdate()} is called concurrently from many request threads and must be thread safe.</p>
+ *
+ * @param <T> the type of notification this source provides.
+ * @see FullUpdateBuilder
+ * @see ShardedFullUpdateBuilder
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public interface FullUpdateSource<T>
+{
+    /**
+     * Get the full update representing the entire latest state.
+     *
+     * @return the full update.
+     */
+    T getFullUpdate();
+}
@@ -24,9 +24,9 @@ public class NotificationChannel<T extends SequencedNotification>
     private ExecutorService executor;
     private RingBuffer<EventHolder<T>> notifications;
     private long maximumUpdatesToSend;
-    private final SequenceBarrier notificationReadyBarrier;
+    private final NotificationReadyGate<T> notificationReadyGate = new NotificationReadyGate<T>();
     private final Disruptor<EventHolder<T>> disruptor;
-    private final FullUpdateBuilder<T> fullUpdateBuilder;
+    private final FullUpdateSource<T> fullUpdateSource;
 
     /**
      * Create a new notifications channel.
@@ -38,20 +38,76 @@ public class NotificationChannel<T extends SequencedNotification>
      */
     public NotificationChannel(final FullUpdateBuilder<T> fullUpdateBuilder,
                                final int maxNotificationBufferSize, final long maximumUpdatesToSend)
+    {
+        this(fullUpdateBuilder, maxNotificationBufferSize, maximumUpdatesToSend, new NotificationPipeline<T>());
+    }
+
+    /**
+     * Create a new notifications channel which processes notifications through <i>pipeline</i> before they become visible
+     * to clients.
+     *
+     * @param fullUpdateBuilder the event handler that builds up a full event for new consumers. It receives notifications
+     * once they have passed through the pipeline.
+     * @param maxNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead.
+     * @param pipeline the processing stages to run before notifications become visible. May only be used by one channel.
+     */
+    public NotificationChannel(final FullUpdateBuilder<T> fullUpdateBuilder, final int maxNotificationBufferSize,
+                               final long maximumUpdatesToSend, final NotificationPipeline<T> pipeline)
+    {
+        this(fullUpdateBuilder, maxNotificationBufferSize, maximumUpdatesToSend, pipeline, new EventHolderUnwrapper<T>(fullUpdateBuilder));
+    }
+
+    /**
+     * Create a new notifications channel which builds the full update using several shards in parallel.
+     *
+     * @param fullUpdateBuilder the sharded builder that builds up a full event for new consumers. Each of its shards is run
+     * by a separate event processor. The builder may only be used by one channel.
+     * @param maxNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead. Must be at least twice the builder's checkpoint interval.
+     */
+    public NotificationChannel(final ShardedFullUpdateBuilder<T, ?> fullUpdateBuilder,
+                               final int maxNotificationBufferSize, final long maximumUpdatesToSend)
+    {
+        this(fullUpdateBuilder, maxNotificationBufferSize, maximumUpdatesToSend, new NotificationPipeline<T>());
+    }
+
+    /**
+     * Create a new notifications channel which builds the full update using several shards in parallel and processes
+     * notifications through <i>pipeline</i> before they become visible to clients.
+     *
+     * @param fullUpdateBuilder the sharded builder that builds up a full event for new consumers. Each of its shards is run
+     * by a separate event processor and receives notifications once they have passed through the pipeline. The builder
+     * may only be used by one channel.
+     * @param maxNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead. Must be at least twice the builder's checkpoint interval.
+     * @param pipeline the processing stages to run before notifications become visible. May only be used by one channel.
+     */
+    public NotificationChannel(final ShardedFullUpdateBuilder<T, ?> fullUpdateBuilder, final int maxNotificationBufferSize,
+                               final long maximumUpdatesToSend, final NotificationPipeline<T> pipeline)
+    {
+        this(fullUpdateBuilder, maxNotificationBufferSize, maximumUpdatesToSend, pipeline,
+             fullUpdateBuilder.createEventHandlers(maximumUpdatesToSend));
+    }
+
+    private NotificationChannel(final FullUpdateSource<T> fullUpdateSource, final int maxNotificationBufferSize,
+                                final long maximumUpdatesToSend, final NotificationPipeline<T> pipeline,
+                                final EventHandler<EventHolder<T>>... fullUpdateHandlers)
     {
         validateSizes(maxNotificationBufferSize, maximumUpdatesToSend);
-        this.fullUpdateBuilder = fullUpdateBuilder;
+        this.fullUpdateSource = fullUpdateSource;
         this.maximumUpdatesToSend = maximumUpdatesToSend;
 
         executor = Executors.newCachedThreadPool();
 
         disruptor = new Disruptor<EventHolder<T>>(EventHolder.<T>getFactory(), maxNotificationBufferSize, executor, ClaimStrategy.Option.MULTI_THREADED,
                                                         WaitStrategy.Option.BLOCKING);
-        final EventHolderUnwrapper<T> fullUpdateBuilderProcessorThingy = new EventHolderUnwrapper<T>(fullUpdateBuilder);
-        disruptor.handleEventsWith(fullUpdateBuilderProcessorThingy);
+        pipeline.wire(disruptor, notificationReadyGate, fullUpdateHandlers);
         disruptor.start();
         notifications = disruptor.getRingBuffer();
-        notificationReadyBarrier = notifications.newBarrier();
     }
 
     /**
@@ -76,19 +132,48 @@ public class NotificationChannel<T extends SequencedNotification>
      */
     public Collection<T> getNotificationsToSend(final long lastSequenceReceived, final Collection<T> notificationsToSend)
     {
-        final long cursor = notifications.getCursor();
+        if (addUpdatesToSend(lastSequenceReceived, notificationsToSend))
+        {
+            notificationsToSend.add(getFullUpdate());
+        }
+        return notificationsToSend;
+    }
+
+    /**
+     * Add the individual notifications available to send to a client which last received sequence
+     * <i>lastSequenceReceived</i>, unless the client is too far behind and requires a full update instead. The decision is
+     * made from a single read of the latest sequence, so callers can use the result to limit how many full updates are
+     * built and sent concurrently, then add the full update from {@link #getFullUpdate()} themselves.
+     *
+     * @param lastSequenceReceived the sequence number of the last notification received by the client.
+     * @param notificationsToSend the collection to add notifications to send to.
+     * @return <tt>true</tt> if the client requires a full update, in which case nothing is added to <i>notificationsToSend</i>.
+     */
+    public boolean addUpdatesToSend(final long lastSequenceReceived, final Collection<T> notificationsToSend)
+    {
+        final long cursor = getNotificationReadySequence();
         if (needsFullUpdate(cursor, lastSequenceReceived))
         {
-            notificationsToSend.add(fullUpdateBuilder.getFullUpdate());
+            return true;
         }
-        else if (cursor > lastSequenceReceived)
+        if (cursor > lastSequenceReceived)
         {
             for (long i = Math.max(lastSequenceReceived, 0); i <= cursor; i++)
             {
                 notificationsToSend.add(notifications.get(i).getEvent());
             }
         }
-        return notificationsToSend;
+        return false;
+    }
+
+    /**
+     * Get the full update to send to clients which are too far behind.
+     *
+     * @return a notification representing the entire state.
+     */
+    public T getFullUpdate()
+    {
+        return fullUpdateSource.getFullUpdate();
     }
 
     /**
@@ -105,33 +190,39 @@ public class NotificationChannel<T extends SequencedNotification>
     }
 
     /**
-     * Asynchronously waits for the next notification after <i>lastSequenceReceived</i> and then calls {@link javax.servlet.AsyncContext#dispatch()}
+     * Asynchronously waits for the next notification after <i>lastSequenceReceived</i> to become visible to clients and then calls {@link javax.servlet.AsyncContext#dispatch()}
      * on the <i>asyncContext</i>.
      *
      * @param lastSequenceReceived the last sequence number received by the client.
      * @param asyncContext the context to dispatch when a new notification is received.
+     * @return a handle which must be cancelled if <i>asyncContext</i> times out or fails, releasing the waiting thread
+     * without dispatching.
      */
-    public void dispatchOnNextNotification(final long lastSequenceReceived, final AsyncContext asyncContext)
+    public PendingDispatch dispatchOnNextNotification(final long lastSequenceReceived, final AsyncContext asyncContext)
     {
+        final PendingDispatch pendingDispatch = new PendingDispatch(notificationReadyGate);
         asyncContext.start(new Runnable()
         {
             public void run()
             {
                 try
                 {
-                    notificationReadyBarrier.waitFor(lastSequenceReceived + 1);
-                }
-                catch (AlertException e)
-                {
-                    LOGGER.info("Received alert while waiting for next notification.");
+                    if (!notificationReadyGate.waitFor(lastSequenceReceived + 1, pendingDispatch) && !pendingDispatch.isFinished())
+                    {
+                        LOGGER.info("Received alert while waiting for next notification.");
+                    }
                 }
                 catch (InterruptedException e)
                 {
                     LOGGER.info("Interrupted while waiting for next notification.");
                 }
-                asyncContext.dispatch();
+                if (pendingDispatch.finish())
+                {
+                    asyncContext.dispatch();
+                }
             }
         });
+        return pendingDispatch;
     }
 
     /**
@@ -145,11 +236,17 @@ public class NotificationChannel<T extends SequencedNotification>
      */
     public boolean shutdown(final long timeout, final TimeUnit timeUnit) throws InterruptedException
     {
+        notificationReadyGate.alert();
         disruptor.halt();
         executor.shutdown();
         return executor.awaitTermination(timeout, timeUnit);
     }
 
+    private long getNotificationReadySequence()
+    {
+        return notificationReadyGate.getSequence();
+    }
+
     private boolean needsFullUpdate(final long cursor, final long lastSequenceReceived)
     {
         return cursor >= 0 && lastSequenceReceived + maximumUpdatesToSend < cursor;
@@ -0,0 +1,146 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.dsl.Disruptor;
+
+import java.util.*;
+
+/**
+ * Describes a dependency graph of {@link EventHandler} stages which process every notification published to a
+ * {@link NotificationChannel} before it becomes visible to clients. This allows expensive per notification work such as
+ * encoding, compression or journaling to be done once, off both the publishing thread and the request threads.
+ *
+ * <p>Handlers within a stage run in parallel, each on its own thread, while a stage added with
+ * {@link PipelineStage#then(EventHandler[])} only sees a notification once every handler it depends on has processed it.
+ * Handlers may modify the notification, for example to attach its encoded form. A notification is only sent to clients,
+ * and passed to the full update builder, once every final stage (one no other stage depends on) has processed it.</p>
+ *
+ * <pre>
+ * final NotificationPipeline&lt;Update&gt; pipeline = new NotificationPipeline&lt;Update&gt;();
+ * final PipelineStage&lt;Update&gt; encode = pipeline.handleEventsWith(encoder);
+ * encode.then(compressor);
+ * encode.then(journaller);
+ * new NotificationChannel&lt;Update&gt;(fullUpdateBuilder, 1024, 512, pipeline);
+ * </pre>
+ *
+ * <p>A pipeline can only be used by one channel and no stages can be added once the channel has been created.</p>
+ *
+ * @param <T> the type of notification processed by the pipeline.
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public class NotificationPipeline<T>
+{
+    private final List<StageDefinition<T>> stages = new ArrayList<StageDefinition<T>>();
+    private final Set<EventHolderUnwrapper<T>> dependencies = new HashSet<EventHolderUnwrapper<T>>();
+    private boolean wired;
+
+    /**
+     * Add a stage which processes notifications as soon as they are published. The handlers run in parallel with each
+     * other.
+     *
+     * @param handlers the handlers to run in the new stage.
+     * @return the new stage.
+     */
+    public PipelineStage<T> handleEventsWith(final EventHandler<T>... handlers)
+    {
+        return addStage(Collections.<EventHolderUnwrapper<T>>emptyList(), handlers);
+    }
+
+    /**
+     * Combine stages so that a further stage can be added which depends on all of them.
+     *
+     * @param stages the stages to depend on.
+     * @return a stage combining the handlers of all <i>stages</i>.
+     */
+    public PipelineStage<T> after(final PipelineStage<T>... stages)
+    {
+        final List<EventHolderUnwrapper<T>> handlers = new ArrayList<EventHolderUnwrapper<T>>();
+        for (final PipelineStage<T> stage : stages)
+        {
+            handlers.addAll(stage.getHandlers());
+        }
+        return new PipelineStage<T>(this, handlers);
+    }
+
+    synchronized PipelineStage<T> addStage(final List<EventHolderUnwrapper<T>> stageDependencies, final EventHandler<T>... handlers)
+    {
+        if (wired)
+        {
+            throw new IllegalStateException("Stages cannot be added once the pipeline is used by a NotificationChannel.");
+        }
+        if (handlers.length == 0)
+        {
+            throw new IllegalArgumentException("A stage requires at least one handler.");
+        }
+        final List<EventHolderUnwrapper<T>> stageHandlers = new ArrayList<EventHolderUnwrapper<T>>(handlers.length);
+        for (final EventHandler<T> handler : handlers)
+        {
+            stageHandlers.add(new EventHolderUnwrapper<T>(handler));
+        }
+        stages.add(new StageDefinition<T>(stageDependencies, stageHandlers));
+        dependencies.addAll(stageDependencies);
+        return new PipelineStage<T>(this, stageHandlers);
+    }
+
+    /**
+     * Register the pipeline's stages with <i>disruptor</i>, followed by the <i>gate</i> which runs after every final stage
+     * and then the <i>fullUpdateHandlers</i>, so the full update never includes notifications clients can't see yet.
+     */
+    synchronized void wire(final Disruptor<EventHolder<T>> disruptor, final NotificationReadyGate<T> gate,
+                           final EventHandler<EventHolder<T>>... fullUpdateHandlers)
+    {
+        if (wired)
+        {
+            throw new IllegalStateException("NotificationPipeline can only be used by one NotificationChannel.");
+        }
+        wired = true;
+
+        final List<EventHolderUnwrapper<T>> finalHandlers = new ArrayList<EventHolderUnwrapper<T>>();
+        for (final StageDefinition<T> stage : stages)
+        {
+            final EventHolderUnwrapper<T>[] handlers = toArray(stage.handlers);
+            if (stage.dependencies.isEmpty())
+            {
+                disruptor.handleEventsWith(handlers);
+            }
+            else
+            {
+                disruptor.after(toArray(stage.dependencies)).then(handlers);
+            }
+            for (final EventHolderUnwrapper<T> handler : stage.handlers)
+            {
+                if (!dependencies.contains(handler))
+                {
+                    finalHandlers.add(handler);
+                }
+            }
+        }
+
+        if (finalHandlers.isEmpty())
+        {
+            disruptor.handleEventsWith(gate).then(fullUpdateHandlers);
+        }
+        else
+        {
+            disruptor.after(toArray(finalHandlers)).then(gate).then(fullUpdateHandlers);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private EventHolderUnwrapper<T>[] toArray(final List<EventHolderUnwrapper<T>> handlers)
+    {
+        return handlers.toArray(new EventHolderUnwrapper[handlers.size()]);
+    }
+
+    private static class StageDefinition<T>
+    {
+        private final List<EventHolderUnwrapper<T>> dependencies;
+        private final List<EventHolderUnwrapper<T>> handlers;
+
+        private StageDefinition(final List<EventHolderUnwrapper<T>> dependencies, final List<EventHolderUnwrapper<T>> handlers)
+        {
+            this.dependencies = dependencies;
+            this.handlers = handlers;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs after every final pipeline stage and tracks the last notification visible to clients. Threads waiting for the next
+ * notification block on a condition which is signalled at the end of each batch, so parked clients don't consume CPU while
+ * a stage is busy. Each waiter has its own condition so a cancelled {@link PendingDispatch} wakes only its own thread.
+ */
+class NotificationReadyGate<T> implements EventHandler<EventHolder<T>>
+{
+    private final Lock lock = new ReentrantLock();
+    private final Set<Condition> waiting = new HashSet<Condition>();
+    private volatile long sequence = -1;
+    private volatile int waiters;
+    private volatile boolean alerted;
+
+    public void onEvent(final EventHolder<T> event, final long sequence, final boolean endOfBatch) throws Exception
+    {
+        this.sequence = sequence;
+        if (endOfBatch && waiters > 0)
+        {
+            signalAll();
+        }
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Block until the notification at <i>expectedSequence</i> is visible to clients.
+     *
+     * @param expectedSequence the sequence to wait for.
+     * @param pendingDispatch the dispatch waiting for the sequence, which stops the wait when cancelled.
+     * @return <tt>true</tt> if the sequence was reached or <tt>false</tt> if the gate was alerted or the dispatch cancelled
+     * first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean waitFor(final long expectedSequence, final PendingDispatch pendingDispatch) throws InterruptedException
+    {
+        if (sequence >= expectedSequence)
+        {
+            return true;
+        }
+
+        lock.lock();
+        try
+        {
+            final Condition notificationReady = lock.newCondition();
+            waiting.add(notificationReady);
+            waiters = waiting.size();
+            pendingDispatch.setCondition(notificationReady);
+            try
+            {
+                // Registering as a waiter before checking the sequence ensures the next batch end signals us.
+                while (sequence < expectedSequence)
+                {
+                    if (alerted || pendingDispatch.isFinished())
+                    {
+                        return false;
+                    }
+                    notificationReady.await();
+                }
+                return true;
+            }
+            finally
+            {
+                pendingDispatch.setCondition(null);
+                waiting.remove(notificationReady);
+                waiters = waiting.size();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release all waiting threads, for example when the channel is shutdown.
+     */
+    public void alert()
+    {
+        alerted = true;
+        signalAll();
+    }
+
+    /**
+     * Wake the thread waiting for <i>pendingDispatch</i>, if any, so it rechecks whether to keep waiting.
+     *
+     * @param pendingDispatch the cancelled dispatch.
+     */
+    void wake(final PendingDispatch pendingDispatch)
+    {
+        lock.lock();
+        try
+        {
+            final Condition notificationReady = pendingDispatch.getCondition();
+            if (notificationReady != null)
+            {
+                notificationReady.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void signalAll()
+    {
+        lock.lock();
+        try
+        {
+            for (final Condition notificationReady : waiting)
+            {
+                notificationReady.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.symphonious.longpoll;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * Handle to a client waiting for the next notification, returned by
+ * {@link NotificationChannel#dispatchOnNextNotification(long, javax.servlet.AsyncContext)}. Cancel it when the request's
+ * async context times out or fails so the waiting thread is released and the completed context isn't dispatched.
+ *
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public class PendingDispatch
+{
+    private final NotificationReadyGate<?> gate;
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private Condition condition;
+
+    PendingDispatch(final NotificationReadyGate<?> gate)
+    {
+        this.gate = gate;
+    }
+
+    /**
+     * Stop waiting and skip the dispatch if it hasn't happened yet.
+     *
+     * @return <tt>true</tt> if the dispatch was cancelled, <tt>false</tt> if it had already happened.
+     */
+    public boolean cancel()
+    {
+        if (finished.compareAndSet(false, true))
+        {
+            gate.wake(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Set the condition the waiting thread is blocked on. Only accessed while holding the gate's lock.
+     */
+    void setCondition(final Condition condition)
+    {
+        this.condition = condition;
+    }
+
+    Condition getCondition()
+    {
+        return condition;
+    }
+
+    boolean isFinished()
+    {
+        return finished.get();
+    }
+
+    /**
+     * Claim the dispatch for the waiting thread.
+     *
+     * @return <tt>true</tt> if the context should be dispatched, <tt>false</tt> if it was cancelled.
+     */
+    boolean finish()
+    {
+        return finished.compareAndSet(false, true);
+    }
+}
@@ -0,0 +1,40 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+
+import java.util.List;
+
+/**
+ * A group of event handlers in a {@link NotificationPipeline}, used to add further stages which depend on them.
+ *
+ * @param <T> the type of notification processed by the pipeline.
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public class PipelineStage<T>
+{
+    private final NotificationPipeline<T> pipeline;
+    private final List<EventHolderUnwrapper<T>> handlers;
+
+    PipelineStage(final NotificationPipeline<T> pipeline, final List<EventHolderUnwrapper<T>> handlers)
+    {
+        this.pipeline = pipeline;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Add a stage which processes each notification after every handler in this stage has processed it. The handlers in
+     * the new stage run in parallel with each other.
+     *
+     * @param handlers the handlers to run in the new stage.
+     * @return the new stage.
+     */
+    public PipelineStage<T> then(final EventHandler<T>... handlers)
+    {
+        return pipeline.addStage(this.handlers, handlers);
+    }
+
+    List<EventHolderUnwrapper<T>> getHandlers()
+    {
+        return handlers;
+    }
+}
@@ -0,0 +1,160 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the full update using several {@link FullUpdateShard}s in parallel. Every shard runs on its own event processor
+ * reading from the same ring buffer, but only applies the notifications whose key (see {@link #getShardKey(SequencedNotification)})
+ * hashes to it, so coalescing throughput scales with the number of shards.
+ *
+ * <p>To keep the merged full update consistent, shards only publish snapshots at checkpoints: every
+ * <i>checkpointInterval</i> sequences. Since every shard sees every sequence, all shards snapshot at exactly the same
+ * points in the notification stream. {@link #getFullUpdate()} merges the per-shard snapshots at the latest checkpoint all
+ * shards have reached and sets the sequence of the merged update to that checkpoint, so clients then receive any later
+ * notifications individually. Each checkpoint is merged once, by the first request thread to need it, and the result is
+ * shared until all shards reach the next checkpoint.</p>
+ *
+ * <p>The merged update trails the latest visible notification by up to <i>checkpointInterval - 1</i> sequences plus however
+ * far the shards lag behind, and a client which has just received it must still be close enough to be sent individual
+ * notifications. The checkpoint interval must therefore be at most half of the channel's <tt>maximumUpdatesToSend</tt>,
+ * leaving the other half for shard lag.</p>
+ *
+ * @param <T> the type of notification this update builder consumes.
+ * @param <S> the type of snapshot produced by each shard.
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public abstract class ShardedFullUpdateBuilder<T extends SequencedNotification, S> implements FullUpdateSource<T>
+{
+    private final FullUpdateShardHandler<T, S>[] handlers;
+    private final long checkpointInterval;
+    private final Object mergeLock = new Object();
+    private volatile T mergedUpdate;
+    private boolean handlersCreated;
+
+    /**
+     * Create a new sharded builder.
+     *
+     * @param shards the shards to partition state across. Each shard is run by its own event processor.
+     * @param checkpointInterval the number of sequences between snapshots. Smaller values keep the full update closer to
+     * the latest notification at the cost of more frequent snapshots.
+     */
+    @SuppressWarnings("unchecked")
+    protected ShardedFullUpdateBuilder(final List<? extends FullUpdateShard<T, S>> shards, final long checkpointInterval)
+    {
+        if (shards.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        if (checkpointInterval < 1)
+        {
+            throw new IllegalArgumentException("checkpointInterval must be at least 1.");
+        }
+        this.checkpointInterval = checkpointInterval;
+        handlers = new FullUpdateShardHandler[shards.size()];
+        for (int i = 0; i < handlers.length; i++)
+        {
+            handlers[i] = new FullUpdateShardHandler<T, S>(this, shards.get(i), i);
+        }
+    }
+
+    public T getFullUpdate()
+    {
+        final T lastMergedUpdate = mergedUpdate;
+        if (lastMergedUpdate != null && lastMergedUpdate.getSequence() >= getCheckpointSequence())
+        {
+            return lastMergedUpdate;
+        }
+
+        // Only one thread merges each checkpoint, any others arriving meanwhile wait and then reuse its result.
+        synchronized (mergeLock)
+        {
+            while (true)
+            {
+                final long sequence = getCheckpointSequence();
+                final T currentUpdate = mergedUpdate;
+                if (currentUpdate != null && currentUpdate.getSequence() >= sequence)
+                {
+                    return currentUpdate;
+                }
+
+                final List<S> snapshots = new ArrayList<S>(handlers.length);
+                for (final FullUpdateShardHandler<T, S> handler : handlers)
+                {
+                    final FullUpdateShardHandler.Snapshot<S> snapshot = handler.getSnapshotAt(sequence);
+                    if (snapshot == null)
+                    {
+                        // The snapshot has already been discarded because all shards moved on, retry at the newer checkpoint.
+                        break;
+                    }
+                    snapshots.add(snapshot.getState());
+                }
+
+                if (snapshots.size() == handlers.length)
+                {
+                    final T update = merge(snapshots);
+                    update.setSequence(sequence);
+                    mergedUpdate = update;
+                    return update;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the key used to assign a notification to a shard. All notifications which affect the same part of the state must
+     * have equal keys.
+     *
+     * @param notification the notification.
+     * @return the key for the notification.
+     */
+    protected abstract Object getShardKey(T notification);
+
+    /**
+     * Merge snapshots from every shard into a single full update. Called from request threads, but never concurrently.
+     *
+     * @param snapshots the snapshot from each shard, in shard order, all taken at the same sequence.
+     * @return a new notification representing the entire state. The sequence of the notification is set by the builder.
+     */
+    protected abstract T merge(List<S> snapshots);
+
+    EventHandler<EventHolder<T>>[] createEventHandlers(final long maximumUpdatesToSend)
+    {
+        if (checkpointInterval > maximumUpdatesToSend / 2)
+        {
+            throw new IllegalArgumentException("checkpointInterval must not be larger than half of maximumUpdatesToSend.");
+        }
+        synchronized (this)
+        {
+            if (handlersCreated)
+            {
+                throw new IllegalStateException("ShardedFullUpdateBuilder can only be used by one NotificationChannel.");
+            }
+            handlersCreated = true;
+        }
+        return handlers;
+    }
+
+    int getShardIndex(final T notification)
+    {
+        final int hash = getShardKey(notification).hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % handlers.length;
+    }
+
+    boolean isCheckpoint(final long sequence)
+    {
+        return (sequence + 1) % checkpointInterval == 0;
+    }
+
+    long getCheckpointSequence()
+    {
+        long sequence = Long.MAX_VALUE;
+        for (final FullUpdateShardHandler<T, S> handler : handlers)
+        {
+            sequence = Math.min(sequence, handler.getCheckpoint());
+        }
+        return sequence;
+    }
+}
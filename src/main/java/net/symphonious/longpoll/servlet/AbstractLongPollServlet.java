@@ -0,0 +1,392 @@
+package net.symphonious.longpoll.servlet;
+
+import net.symphonious.longpoll.NotificationChannel;
+import net.symphonious.longpoll.NotificationPipeline;
+import net.symphonious.longpoll.PendingDispatch;
+import net.symphonious.longpoll.SequencedNotification;
+import net.symphonious.longpoll.ShardedFullUpdateBuilder;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * A base class that uses the {@link NotificationChannel} to send notification events to clients via long poll. Both GET and POST
+ * requests are supported. Subclasses create the channel in {@link #createNotificationChannel(int, long)}, which allows any
+ * channel configuration, for example one using a {@link ShardedFullUpdateBuilder} or a {@link NotificationPipeline}.
+ * {@link LongPollServlet} creates the channel from a single {@link net.symphonious.longpoll.FullUpdateBuilder}.
+ *
+ * <p>Requests to the long poll servlet are required to provide a <tt>lastSequence</tt> parameter indicating the sequence number
+ * of the last notification they received.  Any negative number, the absence of the parameter or non-integral value indicates that
+ * no notifications have been received.</p>
+ *
+ * <p>The <tt>lastSequence</tt> parameter can be customized using the {@link #AbstractLongPollServlet(int, long, String)}
+ * constructor.</p>
+ *
+ * <p>To protect the server from reconnect storms, the {@link #AbstractLongPollServlet(int, long, String, int, int, long)}
+ * constructor can bound the number of full updates being sent concurrently and the number of clients waiting for the next
+ * notification. Requests beyond those limits are answered cheaply by
+ * {@link #sendRetryLater(HttpServletRequest, HttpServletResponse, long)} with a randomly jittered reconnect delay, spreading
+ * reconnecting clients out over time. Clients which are already up to date are unaffected by the full update limit.</p>
+ *
+ * @param <T> the type of notification to be sent.
+ * @author <a href="http://www.symphonious.net/" target="_top">Adrian Sutton</a>
+ */
+public abstract class AbstractLongPollServlet<T extends SequencedNotification> extends HttpServlet
+{
+    /**
+     * Response header carrying the suggested reconnect delay in milliseconds when a request is shed.
+     */
+    public static final String RECONNECT_DELAY_HEADER = "X-Reconnect-Delay";
+
+    private static final String PARKED_CLIENT_ATTRIBUTE = AbstractLongPollServlet.class.getName() + ".parkedClient";
+    private static final long DEFAULT_RECONNECT_WINDOW_MILLIS = 10000;
+
+    private ThreadLocal<Collection<T>> notificationsToSend = new ThreadLocal<Collection<T>>();
+    private final Random random = new Random();
+    private final AtomicInteger parkedClients = new AtomicInteger();
+
+    private NotificationChannel<T> notificationChannel;
+
+    private  final String sequenceParamName;
+    private final int maximumNotificationBufferSize;
+    private final long maximumUpdatesToSend;
+    private final Semaphore fullUpdatePermits;
+    private final int maximumParkedClients;
+    private final long reconnectWindowMillis;
+
+    /**
+     * Create the servlet with specified configuration parameters.
+     *
+     * @param maximumNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead.
+     */
+    @SuppressWarnings({"UnusedDeclaration"})
+    public AbstractLongPollServlet(final int maximumNotificationBufferSize, final long maximumUpdatesToSend)
+    {
+        this(maximumNotificationBufferSize, maximumUpdatesToSend, "lastSequence");
+    }
+
+    /**
+     * Create the servlet with specified configuration parameters.
+     *
+     * @param maximumNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead.
+     * @param sequenceParamName the request parameter name the client sends the last received sequence number in.
+     */
+    public AbstractLongPollServlet(final int maximumNotificationBufferSize, final long maximumUpdatesToSend, final String sequenceParamName)
+    {
+        this(maximumNotificationBufferSize, maximumUpdatesToSend, sequenceParamName, Integer.MAX_VALUE, Integer.MAX_VALUE,
+             DEFAULT_RECONNECT_WINDOW_MILLIS);
+    }
+
+    /**
+     * Create the servlet with specified configuration parameters, including admission control limits.
+     *
+     * @param maximumNotificationBufferSize the maximum number of notifications to buffer. Must be a power of 2.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client. Clients which fall further behind
+     * than this limit will be sent a full update instead.
+     * @param sequenceParamName the request parameter name the client sends the last received sequence number in.
+     * @param maximumConcurrentFullUpdates the maximum number of full updates to build and send at the same time. Clients
+     * requiring a full update beyond this limit are asked to retry later.
+     * @param maximumParkedClients the maximum number of clients waiting for the next notification. Clients beyond this
+     * limit are asked to retry later.
+     * @param reconnectWindowMillis clients asked to retry later are given a random reconnect delay between zero and this
+     * many milliseconds.
+     */
+    public AbstractLongPollServlet(final int maximumNotificationBufferSize, final long maximumUpdatesToSend, final String sequenceParamName,
+                                   final int maximumConcurrentFullUpdates, final int maximumParkedClients, final long reconnectWindowMillis)
+    {
+        if (maximumConcurrentFullUpdates < 1 || maximumParkedClients < 1)
+        {
+            throw new IllegalArgumentException("maximumConcurrentFullUpdates and maximumParkedClients must be at least 1.");
+        }
+        if (reconnectWindowMillis < 1)
+        {
+            throw new IllegalArgumentException("reconnectWindowMillis must be at least 1.");
+        }
+        this.maximumUpdatesToSend = maximumUpdatesToSend;
+        this.maximumNotificationBufferSize = maximumNotificationBufferSize;
+        this.sequenceParamName = sequenceParamName;
+        this.fullUpdatePermits = new Semaphore(maximumConcurrentFullUpdates);
+        this.maximumParkedClients = maximumParkedClients;
+        this.reconnectWindowMillis = reconnectWindowMillis;
+    }
+
+    @Override
+    public void init() throws ServletException
+    {
+        notificationChannel = createNotificationChannel(maximumNotificationBufferSize, maximumUpdatesToSend);
+    }
+
+    @Override
+    public void destroy()
+    {
+        try
+        {
+            notificationChannel.shutdown(10, SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            // Ignore.
+        }
+        super.destroy();
+    }
+
+    /**
+     * Get the notification channel used by this servlet. This can then be used to publish notifications.
+     *
+     * @return the notification channel.
+     */
+    @SuppressWarnings("unused")
+    protected NotificationChannel<T> getNotificationChannel()
+    {
+        return notificationChannel;
+    }
+
+    /**
+     * Create the notification channel used by this servlet. Called once from {@link #init()}.
+     *
+     * @param maximumNotificationBufferSize the maximum number of notifications to buffer.
+     * @param maximumUpdatesToSend the maximum number of notifications to send to client.
+     * @return the notification channel.
+     */
+    protected abstract NotificationChannel<T> createNotificationChannel(int maximumNotificationBufferSize, long maximumUpdatesToSend);
+
+    @Override
+    protected void doPost(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        sendNotifications(request, response);
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        sendNotifications(request, response);
+    }
+
+    private void sendNotifications(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        releaseParkedClient(request);
+        final long lastReceivedSequence = getLastReceivedSequence(request);
+        final Collection<T> notificationsToSend = getNotificationsToSendCollection();
+        if (notificationChannel.addUpdatesToSend(lastReceivedSequence, notificationsToSend))
+        {
+            sendFullUpdate(request, response, notificationsToSend);
+        }
+        else if (notificationsToSend.size() > 0)
+        {
+            sendNotifications(request, response, notificationsToSend);
+        }
+        else
+        {
+            waitForNextNotification(request, response, lastReceivedSequence);
+        }
+    }
+
+    private void sendFullUpdate(final HttpServletRequest request, final HttpServletResponse response, final Collection<T> notificationsToSend)
+    throws ServletException, IOException
+    {
+        if (!fullUpdatePermits.tryAcquire())
+        {
+            sendRetryLater(request, response, getReconnectDelay());
+            return;
+        }
+
+        try
+        {
+            notificationsToSend.add(notificationChannel.getFullUpdate());
+            sendNotifications(request, response, notificationsToSend);
+        }
+        finally
+        {
+            fullUpdatePermits.release();
+        }
+    }
+
+    private void waitForNextNotification(final HttpServletRequest request, final HttpServletResponse response, final long lastReceivedSequence)
+    throws ServletException, IOException
+    {
+        if (parkedClients.incrementAndGet() > maximumParkedClients)
+        {
+            parkedClients.decrementAndGet();
+            sendRetryLater(request, response, getReconnectDelay());
+            return;
+        }
+
+        final ParkedClient parkedClient = new ParkedClient(parkedClients);
+        try
+        {
+            final AsyncContext asyncContext = request.startAsync();
+            request.setAttribute(PARKED_CLIENT_ATTRIBUTE, parkedClient);
+            asyncContext.addListener(parkedClient);
+            parkedClient.setPendingDispatch(notificationChannel.dispatchOnNextNotification(lastReceivedSequence, asyncContext));
+        }
+        catch (RuntimeException e)
+        {
+            // Don't leak the slot if the request can't be parked, e.g. the servlet isn't async supported.
+            request.removeAttribute(PARKED_CLIENT_ATTRIBUTE);
+            parkedClient.release();
+            throw e;
+        }
+    }
+
+    private void releaseParkedClient(final HttpServletRequest request)
+    {
+        final ParkedClient parkedClient = (ParkedClient) request.getAttribute(PARKED_CLIENT_ATTRIBUTE);
+        if (parkedClient != null)
+        {
+            request.removeAttribute(PARKED_CLIENT_ATTRIBUTE);
+            parkedClient.release();
+        }
+    }
+
+    private long getReconnectDelay()
+    {
+        return (long) (random.nextDouble() * reconnectWindowMillis);
+    }
+
+    private Collection<T> getNotificationsToSendCollection()
+    {
+        Collection<T> collection = notificationsToSend.get();
+        if (collection == null)
+        {
+            collection = new ArrayList<T>();
+            notificationsToSend.set(collection);
+        }
+        else
+        {
+            collection.clear();
+        }
+        return collection;
+    }
+
+    /**
+     * Get the last received sequence number from the request.  By default this is done by looking for a <tt>lastSequence</tt>
+     * parameter but can be overridden here to customize the behaviour.
+     *
+     * @param request the request to get the last received sequence number from.
+     * @return the last received sequence number. A negative number indicates that no notifications have been received.
+     */
+    protected long getLastReceivedSequence(final HttpServletRequest request)
+    {
+        try
+        {
+            return Long.parseLong(request.getParameter(sequenceParamName));
+        }
+        catch (NumberFormatException e)
+        {
+            return -2;
+        }
+    }
+
+    /**
+     * Ask the client to retry later because the server is shedding load. By default this sends an empty
+     * <tt>503 Service Unavailable</tt> response with a <tt>Retry-After</tt> header, rounded up to whole seconds, and the
+     * exact delay in milliseconds in the {@link #RECONNECT_DELAY_HEADER} header. Override to send the delay in an
+     * application specific format.
+     *
+     * @param request the incoming request.
+     * @param response the response to send.
+     * @param reconnectDelayMillis the randomly jittered delay the client should wait before reconnecting.
+     * @throws ServletException if the request could not be handled.
+     * @throws IOException if an IO error is detected while sending the response.
+     */
+    protected void sendRetryLater(final HttpServletRequest request, final HttpServletResponse response, final long reconnectDelayMillis)
+    throws ServletException, IOException
+    {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1, SECONDS.convert(reconnectDelayMillis + 999, MILLISECONDS))));
+        response.setHeader(RECONNECT_DELAY_HEADER, String.valueOf(reconnectDelayMillis));
+        response.setContentLength(0);
+    }
+
+    /**
+     * Send the notifications to the client.  This method is responsible for serializing and writing the actual notifications.
+     * Notifications may be coalesced by this method so long as the maximum sequence number sent to the client is exactly equal
+     * to the maximum sequence number of any notification in <i>notificationsToSend</i>.
+     *
+     * @param request the incoming request.
+     * @param response the response to send notifications on.
+     * @param notificationsToSend the notifications to send.
+     * @throws ServletException if the request could not be handled.
+     * @throws IOException if an IO error is detected while sending the notifications.
+     */
+    protected abstract void sendNotifications(HttpServletRequest request, HttpServletResponse response, final Collection<T> notificationsToSend)
+    throws ServletException, IOException;
+
+    /**
+     * Holds a parked client's slot for as long as a thread is waiting to dispatch it. Releasing the slot, for example when
+     * the async context times out, also cancels the wait so the container thread is freed and the completed context isn't
+     * dispatched.
+     */
+    private static class ParkedClient implements AsyncListener
+    {
+        private final AtomicInteger parkedClients;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile PendingDispatch pendingDispatch;
+
+        public ParkedClient(final AtomicInteger parkedClients)
+        {
+            this.parkedClients = parkedClients;
+        }
+
+        public void setPendingDispatch(final PendingDispatch pendingDispatch)
+        {
+            this.pendingDispatch = pendingDispatch;
+            if (released.get())
+            {
+                pendingDispatch.cancel();
+            }
+        }
+
+        public void release()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                parkedClients.decrementAndGet();
+                final PendingDispatch pendingDispatch = this.pendingDispatch;
+                if (pendingDispatch != null)
+                {
+                    pendingDispatch.cancel();
+                }
+            }
+        }
+
+        public void onComplete(final AsyncEvent event) throws IOException
+        {
+            release();
+        }
+
+        public void onTimeout(final AsyncEvent event) throws IOException
+        {
+            release();
+        }
+
+        public void onError(final AsyncEvent event) throws IOException
+        {
+            release();
+        }
+
+        public void onStartAsync(final AsyncEvent event) throws IOException
+        {
+            // Not re-registered, the client is released when it is dispatched.
+        }
+    }
+}
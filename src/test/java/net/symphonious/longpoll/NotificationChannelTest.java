@@ -1,16 +1,23 @@
 package net.symphonious.longpoll;
 
+import com.lmax.disruptor.EventHandler;
 import org.junit.After;
 import org.junit.Test;
 
 import javax.servlet.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 public class NotificationChannelTest
 {
@@ -90,6 +97,203 @@ public class NotificationChannelTest
         assertNotificationsToSendAre(notificationChannel.getNotificationsToSend(Long.MIN_VALUE), fullUpdateBuilder.getFullUpdate());
     }
 
+    @Test
+    public void shouldOnlyRequireFullUpdateIfReceiverIsTooFarBehind() throws Exception
+    {
+        createNotificationChannel();
+        assertFalse(notificationChannel.addUpdatesToSend(Long.MIN_VALUE, new ArrayList<TestValue>()));
+
+        for (int i = 0; i < 50; i++)
+        {
+            notificationChannel.publish(new TestValue(String.valueOf(i)));
+        }
+        fullUpdateBuilder.waitForSequenceToReach(49);
+
+        final Collection<TestValue> notificationsToSend = new ArrayList<TestValue>();
+        assertTrue(notificationChannel.addUpdatesToSend(Long.MIN_VALUE, notificationsToSend));
+        assertTrue(notificationChannel.addUpdatesToSend(40, notificationsToSend));
+        assertThat(notificationsToSend.size(), is(0));
+        assertFalse(notificationChannel.addUpdatesToSend(41, notificationsToSend));
+        assertThat(notificationsToSend.size(), is(9));
+    }
+
+    @Test
+    public void shouldSendMergedFullUpdateFromShardsIfReceiverIsTooFarBehind() throws Exception
+    {
+        final TestShardedFullUpdateBuilder shardedFullUpdateBuilder = new TestShardedFullUpdateBuilder(4, 2);
+        notificationChannel = new NotificationChannel<TestValue>(shardedFullUpdateBuilder, 16, 8);
+        for (int i = 0; i < 50; i++)
+        {
+            notificationChannel.publish(new TestValue(i % 10 + "=" + i));
+        }
+
+        shardedFullUpdateBuilder.waitForFullUpdateSequenceToReach(49);
+
+        final Collection<TestValue> notificationsToSend = notificationChannel.getNotificationsToSend(Long.MIN_VALUE);
+        assertThat(notificationsToSend.size(), is(1));
+        final TestValue fullUpdate = notificationsToSend.iterator().next();
+        assertThat(fullUpdate.getSequence(), is(49L));
+        assertThat(fullUpdate.getValue(), is("0=40,1=41,2=42,3=43,4=44,5=45,6=46,7=47,8=48,9=49"));
+    }
+
+    @Test
+    public void shouldSendNotificationsAfterShardedFullUpdateWhilePublishingContinues() throws Exception
+    {
+        final TestShardedFullUpdateBuilder shardedFullUpdateBuilder = new TestShardedFullUpdateBuilder(4, 4);
+        notificationChannel = new NotificationChannel<TestValue>(shardedFullUpdateBuilder, 16, 8);
+        final AtomicBoolean publishing = new AtomicBoolean(true);
+        final Thread publisher = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                for (int i = 0; publishing.get(); i++)
+                {
+                    notificationChannel.publish(new TestValue(i % 10 + "=" + i));
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        });
+        publisher.start();
+        try
+        {
+            shardedFullUpdateBuilder.waitForFullUpdateSequenceToReach(20);
+            long lastSequenceReceived = Long.MIN_VALUE;
+            int fullUpdatesReceived = 0;
+            for (int i = 0; i < 50; i++)
+            {
+                final Collection<TestValue> notificationsToSend = waitForNotificationsToSend(lastSequenceReceived);
+                for (final TestValue notification : notificationsToSend)
+                {
+                    if (notification.getValue().contains(","))
+                    {
+                        fullUpdatesReceived++;
+                    }
+                    lastSequenceReceived = Math.max(lastSequenceReceived, notification.getSequence());
+                }
+            }
+            assertThat(fullUpdatesReceived, is(1));
+        }
+        finally
+        {
+            publishing.set(false);
+            publisher.join();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowExceptionIfPipelineIsUsedByTwoChannels() throws Exception
+    {
+        final NotificationPipeline<TestValue> pipeline = new NotificationPipeline<TestValue>();
+        pipeline.handleEventsWith(new AppendingEventHandler("a"));
+        notificationChannel = new NotificationChannel<TestValue>(fullUpdateBuilder, 16, 8, pipeline);
+        new NotificationChannel<TestValue>(new TestFullUpdateBuilder(), 16, 8, pipeline);
+    }
+
+    @Test
+    public void shouldNotSendNotificationsUntilProcessedByFinalStage() throws Exception
+    {
+        final BlockingEventHandler blockingHandler = new BlockingEventHandler();
+        final NotificationPipeline<TestValue> pipeline = new NotificationPipeline<TestValue>();
+        pipeline.handleEventsWith(new AppendingEventHandler("a")).then(blockingHandler);
+        notificationChannel = new NotificationChannel<TestValue>(fullUpdateBuilder, 16, 8, pipeline);
+
+        final TestValue value = new TestValue("Value");
+        notificationChannel.publish(value);
+        blockingHandler.started.await();
+        assertThat(notificationChannel.getNotificationsToSend(-1).size(), is(0));
+
+        blockingHandler.release.countDown();
+        assertNotificationsToSendAre(waitForNotificationsToSend(-1), value);
+    }
+
+    @Test
+    public void shouldProcessNotificationsThroughStagesInOrder() throws Exception
+    {
+        final NotificationPipeline<TestValue> pipeline = new NotificationPipeline<TestValue>();
+        pipeline.handleEventsWith(new AppendingEventHandler("a")).then(new AppendingEventHandler("b"));
+        notificationChannel = new NotificationChannel<TestValue>(fullUpdateBuilder, 16, 8, pipeline);
+
+        notificationChannel.publish(new TestValue("Value"));
+
+        assertThat(waitForNotificationsToSend(-1).iterator().next().getValue(), is("Valueab"));
+    }
+
+    @Test
+    public void shouldWaitForFinalStageBeforeDispatchingAsyncContext() throws Exception
+    {
+        final StubAsyncContext asyncContext = new StubAsyncContext();
+        final BlockingEventHandler blockingHandler = new BlockingEventHandler();
+        final NotificationPipeline<TestValue> pipeline = new NotificationPipeline<TestValue>();
+        pipeline.handleEventsWith(blockingHandler);
+        notificationChannel = new NotificationChannel<TestValue>(fullUpdateBuilder, 16, 8, pipeline);
+
+        notificationChannel.dispatchOnNextNotification(-1, asyncContext);
+        notificationChannel.publish(new TestValue("1"));
+        blockingHandler.started.await();
+        Thread.sleep(100);
+        assertFalse("Context was dispatched before final stage processed the message.", asyncContext.dispatched);
+
+        blockingHandler.release.countDown();
+        assertDispatched(asyncContext);
+    }
+
+    @Test
+    public void shouldNotSpinWhileWaitingForFinalStage() throws Exception
+    {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled());
+
+        final StubAsyncContext asyncContext = new StubAsyncContext();
+        final BlockingEventHandler blockingHandler = new BlockingEventHandler();
+        final NotificationPipeline<TestValue> pipeline = new NotificationPipeline<TestValue>();
+        pipeline.handleEventsWith(blockingHandler);
+        notificationChannel = new NotificationChannel<TestValue>(fullUpdateBuilder, 16, 8, pipeline);
+
+        notificationChannel.dispatchOnNextNotification(-1, asyncContext);
+        notificationChannel.publish(new TestValue("1"));
+        blockingHandler.started.await();
+
+        final long waitingThreadId = asyncContext.startedThread.getId();
+        final long cpuTimeBefore = threadMXBean.getThreadCpuTime(waitingThreadId);
+        Thread.sleep(500);
+        final long cpuTimeUsed = threadMXBean.getThreadCpuTime(waitingThreadId) - cpuTimeBefore;
+        assertTrue("Waiting thread used " + cpuTimeUsed + "ns of CPU while the final stage was blocked.",
+                   cpuTimeUsed < TimeUnit.MILLISECONDS.toNanos(100));
+
+        blockingHandler.release.countDown();
+        assertDispatched(asyncContext);
+    }
+
+    @Test
+    public void shouldDispatchWaitingAsyncContextOnShutdown() throws Exception
+    {
+        final StubAsyncContext asyncContext = new StubAsyncContext();
+        createNotificationChannel();
+        notificationChannel.dispatchOnNextNotification(-1, asyncContext);
+
+        notificationChannel.shutdown(10, TimeUnit.SECONDS);
+
+        assertDispatched(asyncContext);
+    }
+
+    @Test
+    public void shouldReleaseWaitingThreadWithoutDispatchingWhenCancelled() throws Exception
+    {
+        final StubAsyncContext asyncContext = new StubAsyncContext();
+        createNotificationChannel();
+        final PendingDispatch pendingDispatch = notificationChannel.dispatchOnNextNotification(-1, asyncContext);
+
+        assertTrue(pendingDispatch.cancel());
+        asyncContext.startedThread.join(3000);
+        assertFalse("Waiting thread is still blocked.", asyncContext.startedThread.isAlive());
+
+        notificationChannel.publish(new TestValue("1"));
+        fullUpdateBuilder.waitForSequenceToReach(0);
+        Thread.sleep(100);
+        assertFalse("Context was dispatched after the wait was cancelled.", asyncContext.dispatched);
+        assertFalse(pendingDispatch.cancel());
+    }
+
     @Test
     public void shouldWaitForNextMessageAndDispatchAsyncContext() throws Exception
     {
@@ -104,6 +308,18 @@ public class NotificationChannelTest
         assertDispatched(asyncContext);
     }
 
+    private Collection<TestValue> waitForNotificationsToSend(final long lastSequenceReceived)
+    {
+        final long waitStartTime = System.currentTimeMillis();
+        Collection<TestValue> notificationsToSend = notificationChannel.getNotificationsToSend(lastSequenceReceived);
+        while (notificationsToSend.isEmpty() && System.currentTimeMillis() - waitStartTime < 3000)
+        {
+            Thread.yield();
+            notificationsToSend = notificationChannel.getNotificationsToSend(lastSequenceReceived);
+        }
+        return notificationsToSend;
+    }
+
     private void assertDispatched(final StubAsyncContext asyncContext)
     {
         final long waitStartTime = System.currentTimeMillis();
@@ -120,10 +336,38 @@ public class NotificationChannelTest
         assertThat(notificationsToSend, is(expectedValues));
     }
 
+    private static class AppendingEventHandler implements EventHandler<TestValue>
+    {
+        private final String valueToAppend;
+
+        public AppendingEventHandler(final String valueToAppend)
+        {
+            this.valueToAppend = valueToAppend;
+        }
+
+        public void onEvent(final TestValue event, final long sequence, final boolean endOfBatch) throws Exception
+        {
+            event.append(valueToAppend);
+        }
+    }
+
+    private static class BlockingEventHandler implements EventHandler<TestValue>
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public void onEvent(final TestValue event, final long sequence, final boolean endOfBatch) throws Exception
+        {
+            started.countDown();
+            release.await();
+        }
+    }
+
     private static class StubAsyncContext implements AsyncContext
     {
 
         volatile boolean dispatched;
+        volatile Thread startedThread;
 
         public ServletRequest getRequest()
         {
@@ -162,7 +406,8 @@ public class NotificationChannelTest
 
         public void start(final Runnable runnable)
         {
-            new Thread(runnable).start();
+            startedThread = new Thread(runnable);
+            startedThread.start();
         }
 
         public void addListener(final AsyncListener asyncListener)
@@ -0,0 +1,160 @@
+package net.symphonious.longpoll;
+
+import com.lmax.disruptor.EventHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class ShardedFullUpdateBuilderTest
+{
+    private final TestShardedFullUpdateBuilder fullUpdateBuilder = new TestShardedFullUpdateBuilder(2, 2);
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionIfCheckpointIntervalIsBiggerThanMaximumUpdatesToSend() throws Exception
+    {
+        new TestShardedFullUpdateBuilder(2, 16).createEventHandlers(8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionIfCheckpointIntervalLeavesNoHeadroomForShardLag() throws Exception
+    {
+        new TestShardedFullUpdateBuilder(2, 8).createEventHandlers(8);
+    }
+
+    @Test
+    public void shouldAcceptCheckpointIntervalOfHalfMaximumUpdatesToSend() throws Exception
+    {
+        new TestShardedFullUpdateBuilder(2, 4).createEventHandlers(8);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowExceptionIfHandlersAreCreatedTwice() throws Exception
+    {
+        fullUpdateBuilder.createEventHandlers(8);
+        fullUpdateBuilder.createEventHandlers(8);
+    }
+
+    @Test
+    public void shouldHaveEmptyFullUpdateBeforeFirstCheckpoint() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+
+        assertFullUpdateIs(-1, "");
+    }
+
+    @Test
+    public void shouldMergeSnapshotsFromAllShardsAtCheckpoint() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+        publish(handlers, 1, "1=b", 0, 1);
+
+        assertFullUpdateIs(1, "0=a,1=b");
+    }
+
+    @Test
+    public void shouldOnlyIncludeNotificationsUpToCheckpointReachedByAllShards() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+        publish(handlers, 1, "1=b", 0, 1);
+        publish(handlers, 2, "0=c", 0, 1);
+        publish(handlers, 3, "1=d", 0);
+
+        assertFullUpdateIs(1, "0=a,1=b");
+
+        publish(handlers, 3, "1=d", 1);
+
+        assertFullUpdateIs(3, "0=c,1=d");
+    }
+
+    @Test
+    public void shouldReuseMergedFullUpdateUntilCheckpointAdvances() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+        publish(handlers, 1, "1=b", 0, 1);
+
+        assertSame(fullUpdateBuilder.getFullUpdate(), fullUpdateBuilder.getFullUpdate());
+    }
+
+    @Test
+    public void shouldOnlyMergeEachCheckpointOnceWhenRequestedConcurrently() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+        publish(handlers, 1, "1=b", 0, 1);
+        fullUpdateBuilder.setMergeDelayMillis(100);
+
+        final int threadCount = 8;
+        final CyclicBarrier start = new CyclicBarrier(threadCount);
+        final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try
+        {
+            final List<Future<TestValue>> results = new ArrayList<Future<TestValue>>();
+            for (int i = 0; i < threadCount; i++)
+            {
+                results.add(executor.submit(new Callable<TestValue>()
+                {
+                    public TestValue call() throws Exception
+                    {
+                        start.await();
+                        return fullUpdateBuilder.getFullUpdate();
+                    }
+                }));
+            }
+
+            final TestValue fullUpdate = results.get(0).get(5, TimeUnit.SECONDS);
+            for (final Future<TestValue> result : results)
+            {
+                assertSame(fullUpdate, result.get(5, TimeUnit.SECONDS));
+            }
+            assertThat(fullUpdate.getValue(), is("0=a,1=b"));
+            assertThat(fullUpdateBuilder.getMergeCount(), is(1));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldMergeOncePerCheckpoint() throws Exception
+    {
+        final EventHandler<EventHolder<TestValue>>[] handlers = fullUpdateBuilder.createEventHandlers(8);
+        publish(handlers, 0, "0=a", 0, 1);
+        publish(handlers, 1, "1=b", 0, 1);
+        assertFullUpdateIs(1, "0=a,1=b");
+        publish(handlers, 2, "0=c", 0, 1);
+        publish(handlers, 3, "1=d", 0, 1);
+        assertFullUpdateIs(3, "0=c,1=d");
+
+        assertThat(fullUpdateBuilder.getMergeCount(), is(2));
+        assertFullUpdateIs(3, "0=c,1=d");
+        assertThat(fullUpdateBuilder.getMergeCount(), is(2));
+    }
+
+    private void publish(final EventHandler<EventHolder<TestValue>>[] handlers, final long sequence, final String value,
+                         final int... shards) throws Exception
+    {
+        final EventHolder<TestValue> holder = new EventHolder<TestValue>();
+        holder.setEvent(new TestValue(value));
+        for (final int shard : shards)
+        {
+            handlers[shard].onEvent(holder, sequence, true);
+        }
+    }
+
+    private void assertFullUpdateIs(final long expectedSequence, final String expectedValue)
+    {
+        final TestValue fullUpdate = fullUpdateBuilder.getFullUpdate();
+        assertThat(fullUpdate.getSequence(), is(expectedSequence));
+        assertThat(fullUpdate.getValue(), is(expectedValue));
+    }
+}
@@ -0,0 +1,105 @@
+package net.symphonious.longpoll;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shards notifications with values of the form <tt>key=value</tt> by their integer key, which places key <i>k</i> in
+ * shard <i>k % shardCount</i>. The full update lists the latest value for every key, in key order.
+ */
+public class TestShardedFullUpdateBuilder extends ShardedFullUpdateBuilder<TestValue, Map<Integer, String>>
+{
+    private final AtomicInteger mergeCount = new AtomicInteger();
+    private volatile long mergeDelayMillis;
+
+    public TestShardedFullUpdateBuilder(final int shardCount, final long checkpointInterval)
+    {
+        super(createShards(shardCount), checkpointInterval);
+    }
+
+    @Override
+    protected Object getShardKey(final TestValue notification)
+    {
+        return getKey(notification);
+    }
+
+    @Override
+    protected TestValue merge(final List<Map<Integer, String>> snapshots)
+    {
+        mergeCount.incrementAndGet();
+        if (mergeDelayMillis > 0)
+        {
+            try
+            {
+                Thread.sleep(mergeDelayMillis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final Map<Integer, String> values = new TreeMap<Integer, String>();
+        for (final Map<Integer, String> snapshot : snapshots)
+        {
+            values.putAll(snapshot);
+        }
+        final StringBuilder fullUpdate = new StringBuilder();
+        for (final Map.Entry<Integer, String> entry : values.entrySet())
+        {
+            if (fullUpdate.length() > 0)
+            {
+                fullUpdate.append(',');
+            }
+            fullUpdate.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return new TestValue(fullUpdate.toString());
+    }
+
+    public int getMergeCount()
+    {
+        return mergeCount.get();
+    }
+
+    public void setMergeDelayMillis(final long mergeDelayMillis)
+    {
+        this.mergeDelayMillis = mergeDelayMillis;
+    }
+
+    public void waitForFullUpdateSequenceToReach(final long expectedSequence)
+    {
+        while (getFullUpdate().getSequence() < expectedSequence)
+        {
+            Thread.yield();
+        }
+    }
+
+    private static Integer getKey(final TestValue notification)
+    {
+        final String value = notification.getValue();
+        return Integer.valueOf(value.substring(0, value.indexOf('=')));
+    }
+
+    private static List<FullUpdateShard<TestValue, Map<Integer, String>>> createShards(final int shardCount)
+    {
+        final List<FullUpdateShard<TestValue, Map<Integer, String>>> shards = new ArrayList<FullUpdateShard<TestValue, Map<Integer, String>>>();
+        for (int i = 0; i < shardCount; i++)
+        {
+            shards.add(new FullUpdateShard<TestValue, Map<Integer, String>>()
+            {
+                private final Map<Integer, String> values = new HashMap<Integer, String>();
+
+                public void onEvent(final TestValue notification, final long sequence) throws Exception
+                {
+                    final String value = notification.getValue();
+                    values.put(getKey(notification), value.substring(value.indexOf('=') + 1));
+                }
+
+                public Map<Integer, String> snapshot()
+                {
+                    return Collections.unmodifiableMap(new HashMap<Integer, String>(values));
+                }
+            });
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,125 @@
+package net.symphonious.longpoll.load;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size log-linear histogram of microsecond latencies. Values below 128 are recorded exactly, larger values are
+ * recorded with 64 sub-buckets per power of two (roughly 1.5% precision). Recording never allocates.
+ *
+ * <p>Recording and reading are synchronized so one histogram can be written by a client thread while the reporter
+ * periodically drains it.</p>
+ */
+class LatencyHistogram
+{
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (63 - 7) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long maxValue;
+
+    public synchronized void record(final long value)
+    {
+        final long clamped = Math.max(value, 0);
+        counts[indexOf(clamped)]++;
+        totalCount++;
+        maxValue = Math.max(maxValue, clamped);
+    }
+
+    /**
+     * Add all values recorded in this histogram to <i>target</i> and reset this histogram.
+     *
+     * @param target the histogram to add values to.
+     */
+    public synchronized void drainInto(final LatencyHistogram target)
+    {
+        target.add(counts, totalCount, maxValue);
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+    }
+
+    public synchronized void add(final LatencyHistogram other)
+    {
+        synchronized (other)
+        {
+            add(other.counts, other.totalCount, other.maxValue);
+        }
+    }
+
+    public synchronized void reset()
+    {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+    }
+
+    public synchronized long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    public synchronized long getMaxValue()
+    {
+        return maxValue;
+    }
+
+    /**
+     * Get the value at the given percentile.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the lower bound of the bucket containing the percentile, or 0 if nothing has been recorded.
+     */
+    public synchronized long getValueAtPercentile(final double percentile)
+    {
+        if (totalCount == 0)
+        {
+            return 0;
+        }
+        final long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= countAtPercentile)
+            {
+                return Math.min(valueOf(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    private synchronized void add(final long[] otherCounts, final long otherTotalCount, final long otherMaxValue)
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += otherCounts[i];
+        }
+        totalCount += otherTotalCount;
+        maxValue = Math.max(maxValue, otherMaxValue);
+    }
+
+    private static int indexOf(final long value)
+    {
+        if (value < LINEAR_BUCKETS)
+        {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (exponent - 7) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long valueOf(final int index)
+    {
+        if (index < LINEAR_BUCKETS)
+        {
+            return index;
+        }
+        final int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 7;
+        final int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket)) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,268 @@
+package net.symphonious.longpoll.load;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load simulation. Starts a {@link SimulationServlet} in an embedded Jetty server on loopback, connects a
+ * large number of NIO based {@link SimulatedClients} and publishes notifications at a fixed rate, periodically reporting
+ * publish-to-receive latency percentiles, the full update ratio, server thread counts and GC activity.
+ *
+ * <p>Everything runs in a single JVM with no external services. Configuration is read from system properties:</p>
+ * <ul>
+ *     <li><tt>clients</tt> - number of simulated clients (default 10000).</li>
+ *     <li><tt>connectRate</tt> - clients connected per second while ramping up (default 2000).</li>
+ *     <li><tt>publishRate</tt> - notifications published per second (default 100).</li>
+ *     <li><tt>keys</tt> - number of keys in the coalesced state sent as a full update (default 1000).</li>
+ *     <li><tt>bufferSize</tt> - notification buffer size, must be a power of 2 (default 4096).</li>
+ *     <li><tt>maxUpdates</tt> - maximum notifications sent before falling back to a full update (default 1024).</li>
+ *     <li><tt>serverThreads</tt> - maximum size of the server request thread pool (default 500).</li>
+ *     <li><tt>clientThreads</tt> - number of client selector threads (default 2).</li>
+ *     <li><tt>sourceAddresses</tt> - number of loopback source addresses (127.0.0.1, 127.0.0.2, ...) clients are bound
+ *     across (default one per 20000 clients).</li>
+ *     <li><tt>maxFullUpdates</tt> - maximum concurrent full update responses before shedding (default unlimited).</li>
+ *     <li><tt>maxParked</tt> - maximum clients waiting for the next notification before shedding (default unlimited).</li>
+ *     <li><tt>reconnectWindow</tt> - milliseconds over which shed clients are asked to spread reconnects (default 10000).</li>
+ *     <li><tt>stormInterval</tt> - seconds between simulated reconnect storms, where every client disconnects at once
+ *     (default 0, no storms).</li>
+ *     <li><tt>stormPause</tt> - milliseconds clients stay disconnected for during a storm (default 2000).</li>
+ *     <li><tt>duration</tt> - seconds to publish for after all clients have connected (default 60).</li>
+ *     <li><tt>reportInterval</tt> - seconds between reports (default 5).</li>
+ * </ul>
+ *
+ * <p>Large client counts need a matching open file limit (<tt>ulimit -n</tt>). Each source address provides its own
+ * ephemeral port range (<tt>/proc/sys/net/ipv4/ip_local_port_range</tt>), so add source addresses if the range is smaller
+ * than the default allowance of 20000 clients per address. Linux routes all of 127.0.0.0/8 to the loopback interface, so no
+ * extra network configuration is needed.</p>
+ */
+public class LoadSimulation
+{
+    private static final String PATH = "/poll";
+    private static final int CLIENTS_PER_SOURCE_ADDRESS = 20000;
+
+    private final int clientCount = Integer.getInteger("clients", 10000);
+    private final int connectRate = Integer.getInteger("connectRate", 2000);
+    private final int publishRate = Integer.getInteger("publishRate", 100);
+    private final int keyCount = Integer.getInteger("keys", 1000);
+    private final int bufferSize = Integer.getInteger("bufferSize", 4096);
+    private final long maxUpdates = Long.getLong("maxUpdates", 1024);
+    private final int serverThreads = Integer.getInteger("serverThreads", 500);
+    private final int clientThreads = Integer.getInteger("clientThreads", 2);
+    private final int sourceAddressCount = Integer.getInteger("sourceAddresses",
+                                                              (clientCount + CLIENTS_PER_SOURCE_ADDRESS - 1) / CLIENTS_PER_SOURCE_ADDRESS);
+    private final int maxFullUpdates = Integer.getInteger("maxFullUpdates", Integer.MAX_VALUE);
+    private final int maxParked = Integer.getInteger("maxParked", Integer.MAX_VALUE);
+    private final long reconnectWindowMillis = Long.getLong("reconnectWindow", 10000);
+    private final long stormIntervalSeconds = Long.getLong("stormInterval", 0);
+    private final long stormPauseMillis = Long.getLong("stormPause", 2000);
+    private final long durationSeconds = Long.getLong("duration", 60);
+    private final long reportIntervalSeconds = Long.getLong("reportInterval", 5);
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final LatencyHistogram intervalLatencies = new LatencyHistogram();
+    private final LatencyHistogram totalLatencies = new LatencyHistogram();
+
+    private volatile boolean publishing = true;
+    private volatile long published;
+
+    public static void main(final String[] args) throws Exception
+    {
+        new LoadSimulation().run();
+    }
+
+    private void run() throws Exception
+    {
+        final SimulationServlet servlet = new SimulationServlet(bufferSize, maxUpdates, keyCount, maxFullUpdates, maxParked,
+                                                                reconnectWindowMillis);
+        final QueuedThreadPool serverThreadPool = new QueuedThreadPool(serverThreads);
+        final Server server = startServer(servlet, serverThreadPool);
+        final int port = ((SelectChannelConnector) server.getConnectors()[0]).getLocalPort();
+        System.out.printf("Server listening on 127.0.0.1:%d, %d clients, %d notifications/s, %d keys%n",
+                          port, clientCount, publishRate, keyCount);
+
+        final SimulatedClients clients = new SimulatedClients(new InetSocketAddress("127.0.0.1", port), getSourceAddresses(), PATH,
+                                                              clientThreads);
+        clients.start();
+        rampUp(clients);
+
+        final Thread publisher = startPublisher(servlet);
+        final Snapshot start = new Snapshot(clients);
+        Snapshot previous = start;
+        clients.drainLatencies(new LatencyHistogram());
+
+        final long endTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextStormTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(stormIntervalSeconds);
+        while (System.nanoTime() < endTime)
+        {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(reportIntervalSeconds));
+            if (stormIntervalSeconds > 0 && System.nanoTime() - nextStormTime >= 0)
+            {
+                System.out.printf("Reconnect storm: all clients disconnecting for %d ms%n", stormPauseMillis);
+                clients.disconnectAll(stormPauseMillis);
+                nextStormTime += TimeUnit.SECONDS.toNanos(stormIntervalSeconds);
+            }
+            clients.drainLatencies(intervalLatencies);
+            final Snapshot current = new Snapshot(clients);
+            report("interval", previous, current, intervalLatencies, serverThreadPool);
+            totalLatencies.add(intervalLatencies);
+            intervalLatencies.reset();
+            previous = current;
+        }
+
+        publishing = false;
+        publisher.join();
+        clients.drainLatencies(totalLatencies);
+        report("total", start, new Snapshot(clients), totalLatencies, serverThreadPool);
+
+        clients.stop();
+        server.stop();
+    }
+
+    private Server startServer(final SimulationServlet servlet, final QueuedThreadPool threadPool) throws Exception
+    {
+        threadPool.setName("server");
+        final Server server = new Server();
+        server.setThreadPool(threadPool);
+
+        final SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptQueueSize(Math.max(connectRate, 128));
+        connector.setMaxIdleTime((int) TimeUnit.MINUTES.toMillis(5));
+        server.addConnector(connector);
+
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        final ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        context.addServlet(holder, PATH);
+        server.setHandler(context);
+
+        server.start();
+        return server;
+    }
+
+    private InetAddress[] getSourceAddresses() throws UnknownHostException
+    {
+        final InetAddress[] sourceAddresses = new InetAddress[Math.max(1, sourceAddressCount)];
+        for (int i = 0; i < sourceAddresses.length; i++)
+        {
+            sourceAddresses[i] = InetAddress.getByAddress(new byte[] {127, (byte) (i >> 16), (byte) (i >> 8), (byte) (i + 1)});
+        }
+        return sourceAddresses;
+    }
+
+    private void rampUp(final SimulatedClients clients) throws InterruptedException
+    {
+        final long startTime = System.nanoTime();
+        for (int i = 0; i < clientCount; i++)
+        {
+            final long dueTime = startTime + TimeUnit.SECONDS.toNanos(i) / connectRate;
+            final long delay = dueTime - System.nanoTime();
+            if (delay > 0)
+            {
+                LockSupport.parkNanos(delay);
+            }
+            clients.addClient();
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (clients.getConnectedClients() < clientCount && System.nanoTime() < deadline)
+        {
+            Thread.sleep(100);
+        }
+        System.out.printf("Connected %d of %d clients in %d ms%n", clients.getConnectedClients(), clientCount,
+                          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    private Thread startPublisher(final SimulationServlet servlet)
+    {
+        final Thread publisher = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                final Random random = new Random();
+                final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / publishRate;
+                long nextPublishTime = System.nanoTime();
+                long value = 0;
+                while (publishing)
+                {
+                    final long delay = nextPublishTime - System.nanoTime();
+                    if (delay > 0)
+                    {
+                        LockSupport.parkNanos(delay);
+                        continue;
+                    }
+                    servlet.publish(random.nextInt(keyCount), value++);
+                    published = value;
+                    nextPublishTime += intervalNanos;
+                }
+            }
+        }, "publisher");
+        publisher.start();
+        return publisher;
+    }
+
+    private void report(final String label, final Snapshot from, final Snapshot to, final LatencyHistogram latencies,
+                        final QueuedThreadPool serverThreadPool)
+    {
+        final double seconds = (to.time - from.time) / (double) TimeUnit.SECONDS.toNanos(1);
+        final long responses = to.responses - from.responses;
+        final long fullUpdates = to.fullUpdates - from.fullUpdates;
+        System.out.printf("[%s %.1fs] published=%d/s responses=%d/s fullUpdates=%.2f%% retryLater=%d errors=%d connected=%d%n",
+                          label, seconds, Math.round((to.published - from.published) / seconds), Math.round(responses / seconds),
+                          responses == 0 ? 0.0 : 100.0 * fullUpdates / responses, to.retryLaterResponses - from.retryLaterResponses,
+                          to.errors - from.errors, to.connectedClients);
+        System.out.printf("    latency(us) count=%d p50=%d p90=%d p99=%d p99.9=%d max=%d%n",
+                          latencies.getTotalCount(), latencies.getValueAtPercentile(50), latencies.getValueAtPercentile(90),
+                          latencies.getValueAtPercentile(99), latencies.getValueAtPercentile(99.9), latencies.getMaxValue());
+        System.out.printf("    threads live=%d peak=%d server pool=%d idle=%d%n",
+                          threadBean.getThreadCount(), threadBean.getPeakThreadCount(),
+                          serverThreadPool.getThreads(), serverThreadPool.getIdleThreads());
+        System.out.printf("    gc collections=%d time=%dms heapUsed=%dMB%n",
+                          to.gcCount - from.gcCount, to.gcTimeMillis - from.gcTimeMillis,
+                          memoryBean.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+    }
+
+    private class Snapshot
+    {
+        private final long time = System.nanoTime();
+        private final long published = LoadSimulation.this.published;
+        private final long responses;
+        private final long fullUpdates;
+        private final long retryLaterResponses;
+        private final long errors;
+        private final int connectedClients;
+        private long gcCount;
+        private long gcTimeMillis;
+
+        private Snapshot(final SimulatedClients clients)
+        {
+            responses = clients.getResponses();
+            fullUpdates = clients.getFullUpdates();
+            retryLaterResponses = clients.getRetryLaterResponses();
+            errors = clients.getErrors();
+            connectedClients = clients.getConnectedClients();
+            for (final GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                gcCount += Math.max(gcBean.getCollectionCount(), 0);
+                gcTimeMillis += Math.max(gcBean.getCollectionTime(), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package net.symphonious.longpoll.load;
+
+import net.symphonious.longpoll.servlet.LongPollServlet;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives a large number of simulated long poll clients from a small number of NIO selector threads. Each client holds a
+ * single keep-alive HTTP/1.1 connection, immediately re-polls with the highest sequence it has received and records the
+ * publish-to-receive latency of every new delta notification.
+ *
+ * <p>Clients are bound round robin across several local source addresses. Each source address has its own ephemeral port
+ * range, so on loopback the number of clients is not limited by the size of a single range.</p>
+ *
+ * <p>Responses must be in the format written by {@link SimulationServlet} and must carry a <tt>Content-Length</tt>
+ * header. Clients asked to retry later with a <tt>503</tt> response disconnect and reconnect after the delay given in the
+ * {@link LongPollServlet#RECONNECT_DELAY_HEADER} header.</p>
+ */
+class SimulatedClients
+{
+    private static final Logger LOGGER = Logger.getLogger(SimulatedClients.class.getName());
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int INITIAL_RESPONSE_BUFFER_SIZE = 4096;
+    private static final long DEFAULT_RECONNECT_DELAY_MILLIS = 1000;
+
+    private final InetSocketAddress address;
+    private final InetAddress[] sourceAddresses;
+    private final String requestLinePrefix;
+    private final String requestHeaders;
+    private final ClientThread[] threads;
+    private int nextThread;
+    private int nextSourceAddress;
+
+    public SimulatedClients(final InetSocketAddress address, final InetAddress[] sourceAddresses, final String path,
+                            final int threadCount) throws IOException
+    {
+        this.address = address;
+        this.sourceAddresses = sourceAddresses;
+        requestLinePrefix = "GET " + path + "?lastSequence=";
+        requestHeaders = " HTTP/1.1\r\nHost: " + address.getAddress().getHostAddress() + ":" + address.getPort() + "\r\n\r\n";
+        threads = new ClientThread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            threads[i] = new ClientThread("simulated-clients-" + i);
+        }
+    }
+
+    public void start()
+    {
+        for (final ClientThread thread : threads)
+        {
+            thread.start();
+        }
+    }
+
+    /**
+     * Add a new client. The client is assigned to a selector thread and a source address round robin and connects
+     * asynchronously.
+     */
+    public void addClient()
+    {
+        final ClientThread thread = threads[nextThread];
+        nextThread = (nextThread + 1) % threads.length;
+        final InetAddress sourceAddress = sourceAddresses[nextSourceAddress];
+        nextSourceAddress = (nextSourceAddress + 1) % sourceAddresses.length;
+        thread.addClient(new Client(thread, sourceAddress));
+    }
+
+    /**
+     * Simulate a network blip: every connected client disconnects and then reconnects, all at the same time and with the
+     * last sequence it received, after <i>pauseMillis</i>.
+     *
+     * @param pauseMillis how long clients stay disconnected for.
+     */
+    public void disconnectAll(final long pauseMillis)
+    {
+        for (final ClientThread thread : threads)
+        {
+            thread.disconnectPauseMillis = pauseMillis;
+            thread.selector.wakeup();
+        }
+    }
+
+    public void stop() throws InterruptedException
+    {
+        for (final ClientThread thread : threads)
+        {
+            thread.running = false;
+            thread.selector.wakeup();
+        }
+        for (final ClientThread thread : threads)
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    public void drainLatencies(final LatencyHistogram target)
+    {
+        for (final ClientThread thread : threads)
+        {
+            thread.latencies.drainInto(target);
+        }
+    }
+
+    public int getConnectedClients()
+    {
+        int total = 0;
+        for (final ClientThread thread : threads)
+        {
+            total += thread.connectedClients;
+        }
+        return total;
+    }
+
+    public long getResponses()
+    {
+        long total = 0;
+        for (final ClientThread thread : threads)
+        {
+            total += thread.responses;
+        }
+        return total;
+    }
+
+    public long getFullUpdates()
+    {
+        long total = 0;
+        for (final ClientThread thread : threads)
+        {
+            total += thread.fullUpdates;
+        }
+        return total;
+    }
+
+    public long getRetryLaterResponses()
+    {
+        long total = 0;
+        for (final ClientThread thread : threads)
+        {
+            total += thread.retryLaterResponses;
+        }
+        return total;
+    }
+
+    public long getErrors()
+    {
+        long total = 0;
+        for (final ClientThread thread : threads)
+        {
+            total += thread.errors;
+        }
+        return total;
+    }
+
+    private class ClientThread extends Thread
+    {
+        private final Selector selector;
+        private final Queue<Client> pendingClients = new ConcurrentLinkedQueue<Client>();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final PriorityQueue<Client> delayedClients = new PriorityQueue<Client>(16, new Comparator<Client>()
+        {
+            public int compare(final Client client1, final Client client2)
+            {
+                return client1.reconnectTime < client2.reconnectTime ? -1 : client1.reconnectTime == client2.reconnectTime ? 0 : 1;
+            }
+        });
+        private volatile boolean running = true;
+        private volatile long disconnectPauseMillis = -1;
+
+        // Only written by this thread.
+        private volatile int connectedClients;
+        private volatile long responses;
+        private volatile long fullUpdates;
+        private volatile long retryLaterResponses;
+        private volatile long errors;
+
+        private ClientThread(final String name) throws IOException
+        {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        private void addClient(final Client client)
+        {
+            pendingClients.add(client);
+            selector.wakeup();
+        }
+
+        private void reconnectLater(final Client client, final long delayMillis)
+        {
+            client.reconnectTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            delayedClients.add(client);
+        }
+
+        private void disconnectAll(final long pauseMillis)
+        {
+            for (final SelectionKey key : selector.keys())
+            {
+                if (key.isValid())
+                {
+                    final Client client = (Client) key.attachment();
+                    client.close();
+                    reconnectLater(client, pauseMillis);
+                }
+            }
+        }
+
+        private long getSelectTimeout()
+        {
+            if (delayedClients.isEmpty())
+            {
+                return 100;
+            }
+            final long delayMillis = TimeUnit.NANOSECONDS.toMillis(delayedClients.peek().reconnectTime - System.nanoTime());
+            return Math.max(1, Math.min(100, delayMillis));
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (running)
+                {
+                    selector.select(getSelectTimeout());
+                    // Clients that fail to connect are re-queued, so only connect those queued before this pass.
+                    for (int i = pendingClients.size(); i > 0; i--)
+                    {
+                        pendingClients.poll().connect();
+                    }
+                    final long now = System.nanoTime();
+                    while (!delayedClients.isEmpty() && delayedClients.peek().reconnectTime - now <= 0)
+                    {
+                        delayedClients.poll().connect();
+                    }
+                    if (disconnectPauseMillis >= 0)
+                    {
+                        disconnectAll(disconnectPauseMillis);
+                        disconnectPauseMillis = -1;
+                    }
+
+                    final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext())
+                    {
+                        final SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        ((Client) key.attachment()).onSelected(key);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                LOGGER.log(Level.SEVERE, "Selector failed.", e);
+            }
+            finally
+            {
+                for (final SelectionKey key : selector.keys())
+                {
+                    ((Client) key.attachment()).close();
+                }
+                try
+                {
+                    selector.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private class Client
+    {
+        private final ClientThread thread;
+        private final InetSocketAddress localAddress;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer request;
+        private ByteBuffer response = ByteBuffer.allocate(INITIAL_RESPONSE_BUFFER_SIZE);
+        private long lastSequence = -1;
+        private long reconnectTime;
+        private int headerEnd = -1;
+        private int contentLength;
+        private long reconnectDelayMillis;
+        private int statusCode;
+        private int parsePosition;
+
+        private Client(final ClientThread thread, final InetAddress sourceAddress)
+        {
+            this.thread = thread;
+            localAddress = new InetSocketAddress(sourceAddress, 0);
+        }
+
+        private void connect()
+        {
+            try
+            {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().bind(localAddress);
+                key = channel.register(thread.selector, SelectionKey.OP_CONNECT, this);
+                if (channel.connect(address))
+                {
+                    onConnected();
+                }
+            }
+            catch (IOException e)
+            {
+                onError(e);
+            }
+        }
+
+        private void onSelected(final SelectionKey selectedKey)
+        {
+            try
+            {
+                if (!selectedKey.isValid())
+                {
+                    return;
+                }
+                if (selectedKey.isConnectable())
+                {
+                    if (channel.finishConnect())
+                    {
+                        onConnected();
+                    }
+                }
+                else if (selectedKey.isWritable())
+                {
+                    writeRequest();
+                }
+                else if (selectedKey.isReadable())
+                {
+                    readResponse();
+                }
+            }
+            catch (IOException e)
+            {
+                onError(e);
+            }
+        }
+
+        private void onConnected() throws IOException
+        {
+            thread.connectedClients++;
+            sendRequest();
+        }
+
+        private void sendRequest() throws IOException
+        {
+            request = ByteBuffer.wrap((requestLinePrefix + lastSequence + requestHeaders).getBytes(ASCII));
+            writeRequest();
+        }
+
+        private void writeRequest() throws IOException
+        {
+            channel.write(request);
+            key.interestOps(request.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void readResponse() throws IOException
+        {
+            if (!response.hasRemaining())
+            {
+                final ByteBuffer larger = ByteBuffer.allocate(response.capacity() * 2);
+                response.flip();
+                larger.put(response);
+                response = larger;
+            }
+            if (channel.read(response) < 0)
+            {
+                throw new IOException("Connection closed by server.");
+            }
+            if (headerEnd < 0 && !parseHeaders())
+            {
+                return;
+            }
+            if (response.position() >= headerEnd + contentLength)
+            {
+                if (statusCode == 503)
+                {
+                    thread.retryLaterResponses++;
+                    close();
+                    thread.reconnectLater(this, reconnectDelayMillis);
+                    return;
+                }
+                onResponse();
+                response.clear();
+                headerEnd = -1;
+                sendRequest();
+            }
+        }
+
+        private boolean parseHeaders() throws IOException
+        {
+            final byte[] bytes = response.array();
+            for (int i = 3; i < response.position(); i++)
+            {
+                if (bytes[i - 3] == '\r' && bytes[i - 2] == '\n' && bytes[i - 1] == '\r' && bytes[i] == '\n')
+                {
+                    headerEnd = i + 1;
+                    final String headers = new String(bytes, 0, headerEnd, ASCII);
+                    statusCode = Integer.parseInt(headers.substring(9, 12));
+                    final String contentLengthHeader = getHeader(headers, "Content-Length");
+                    if (contentLengthHeader == null)
+                    {
+                        throw new IOException("Response did not include a Content-Length header.");
+                    }
+                    contentLength = Integer.parseInt(contentLengthHeader);
+                    final String reconnectDelayHeader = getHeader(headers, LongPollServlet.RECONNECT_DELAY_HEADER);
+                    reconnectDelayMillis = reconnectDelayHeader != null ? Long.parseLong(reconnectDelayHeader) : DEFAULT_RECONNECT_DELAY_MILLIS;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private String getHeader(final String headers, final String name)
+        {
+            for (final String header : headers.split("\r\n"))
+            {
+                final int separator = header.indexOf(':');
+                if (separator > 0 && header.substring(0, separator).trim().equalsIgnoreCase(name))
+                {
+                    return header.substring(separator + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        private void onResponse() throws IOException
+        {
+            if (statusCode != 200)
+            {
+                throw new IOException("Unexpected response status " + statusCode);
+            }
+            thread.responses++;
+            final long receivedTime = System.nanoTime();
+            final byte[] bytes = response.array();
+            final int bodyEnd = headerEnd + contentLength;
+            parsePosition = headerEnd;
+            while (parsePosition < bodyEnd)
+            {
+                final long sequence = parseLong(bytes);
+                final long publishTimeNanos = parseLong(bytes);
+                final byte type = bytes[parsePosition];
+                if (type == 'F')
+                {
+                    thread.fullUpdates++;
+                }
+                else if (sequence > lastSequence)
+                {
+                    thread.latencies.record(TimeUnit.NANOSECONDS.toMicros(receivedTime - publishTimeNanos));
+                }
+                lastSequence = Math.max(lastSequence, sequence);
+                while (parsePosition < bodyEnd && bytes[parsePosition++] != '\n')
+                {
+                    // Skip the payload.
+                }
+            }
+        }
+
+        private long parseLong(final byte[] bytes)
+        {
+            final boolean negative = bytes[parsePosition] == '-';
+            if (negative)
+            {
+                parsePosition++;
+            }
+            long value = 0;
+            byte next;
+            while ((next = bytes[parsePosition++]) != ' ')
+            {
+                value = value * 10 + (next - '0');
+            }
+            return negative ? -value : value;
+        }
+
+        private void onError(final IOException e)
+        {
+            thread.errors++;
+            LOGGER.log(Level.FINE, "Client failed, reconnecting.", e);
+            close();
+            if (thread.running)
+            {
+                thread.pendingClients.add(this);
+            }
+        }
+
+        private void close()
+        {
+            response.clear();
+            headerEnd = -1;
+            if (key != null)
+            {
+                key.cancel();
+                key = null;
+            }
+            if (channel != null)
+            {
+                if (channel.isConnected())
+                {
+                    thread.connectedClients--;
+                }
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    // Ignore.
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.symphonious.longpoll.load;
+
+import net.symphonious.longpoll.AbstractSequencedNotification;
+
+/**
+ * Notification published by the {@link LoadSimulation}. Delta notifications carry a single key/value update, full updates
+ * carry a snapshot of every value. Both record the {@link System#nanoTime()} at which the newest update they contain was
+ * published so clients running in the same JVM can measure publish-to-receive latency.
+ */
+class SimulationNotification extends AbstractSequencedNotification
+{
+    private final long publishTimeNanos;
+    private final int key;
+    private final long value;
+    private final long[] values;
+
+    private SimulationNotification(final long publishTimeNanos, final int key, final long value, final long[] values)
+    {
+        this.publishTimeNanos = publishTimeNanos;
+        this.key = key;
+        this.value = value;
+        this.values = values;
+    }
+
+    public static SimulationNotification update(final int key, final long value)
+    {
+        return new SimulationNotification(System.nanoTime(), key, value, null);
+    }
+
+    public static SimulationNotification fullUpdate(final long[] values, final long sequence, final long publishTimeNanos)
+    {
+        final SimulationNotification fullUpdate = new SimulationNotification(publishTimeNanos, -1, 0, values);
+        fullUpdate.setSequence(sequence);
+        return fullUpdate;
+    }
+
+    public long getPublishTimeNanos()
+    {
+        return publishTimeNanos;
+    }
+
+    public boolean isFullUpdate()
+    {
+        return values != null;
+    }
+
+    public int getKey()
+    {
+        return key;
+    }
+
+    public long getValue()
+    {
+        return value;
+    }
+
+    public long[] getValues()
+    {
+        return values;
+    }
+}
@@ -0,0 +1,110 @@
+package net.symphonious.longpoll.load;
+
+import net.symphonious.longpoll.FullUpdateBuilder;
+import net.symphonious.longpoll.servlet.LongPollServlet;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+
+/**
+ * Concrete {@link LongPollServlet} used by the {@link LoadSimulation}. Notifications are written as plain text, one per line:
+ *
+ * <pre>
+ * &lt;sequence&gt; &lt;publishTimeNanos&gt; D &lt;key&gt; &lt;value&gt;
+ * &lt;sequence&gt; &lt;publishTimeNanos&gt; F &lt;value0&gt;,&lt;value1&gt;,...
+ * </pre>
+ *
+ * <p>Full updates serialize the entire keyed state so their cost grows with the number of keys, as it would in production.</p>
+ */
+class SimulationServlet extends LongPollServlet<SimulationNotification>
+{
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final SimulationFullUpdateBuilder fullUpdateBuilder;
+
+    public SimulationServlet(final int maximumNotificationBufferSize, final long maximumUpdatesToSend, final int keyCount,
+                             final int maximumConcurrentFullUpdates, final int maximumParkedClients, final long reconnectWindowMillis)
+    {
+        super(maximumNotificationBufferSize, maximumUpdatesToSend, "lastSequence", maximumConcurrentFullUpdates, maximumParkedClients,
+              reconnectWindowMillis);
+        fullUpdateBuilder = new SimulationFullUpdateBuilder(keyCount);
+    }
+
+    public void publish(final int key, final long value)
+    {
+        getNotificationChannel().publish(SimulationNotification.update(key, value));
+    }
+
+    @Override
+    protected void sendNotifications(final HttpServletRequest request, final HttpServletResponse response,
+                                     final Collection<SimulationNotification> notificationsToSend)
+    throws ServletException, IOException
+    {
+        final StringBuilder body = new StringBuilder();
+        for (final SimulationNotification notification : notificationsToSend)
+        {
+            body.append(notification.getSequence()).append(' ').append(notification.getPublishTimeNanos());
+            if (notification.isFullUpdate())
+            {
+                body.append(" F ");
+                final long[] values = notification.getValues();
+                for (int i = 0; i < values.length; i++)
+                {
+                    if (i > 0)
+                    {
+                        body.append(',');
+                    }
+                    body.append(values[i]);
+                }
+            }
+            else
+            {
+                body.append(" D ").append(notification.getKey()).append(' ').append(notification.getValue());
+            }
+            body.append('\n');
+        }
+
+        final byte[] bytes = body.toString().getBytes(ASCII);
+        response.setContentType("text/plain");
+        response.setContentLength(bytes.length);
+        response.getOutputStream().write(bytes);
+    }
+
+    @Override
+    protected FullUpdateBuilder<SimulationNotification> getFullUpdateBuilder()
+    {
+        return fullUpdateBuilder;
+    }
+
+    private static class SimulationFullUpdateBuilder implements FullUpdateBuilder<SimulationNotification>
+    {
+        private final long[] values;
+        private long lastPublishTimeNanos;
+        private volatile SimulationNotification fullUpdate;
+
+        public SimulationFullUpdateBuilder(final int keyCount)
+        {
+            values = new long[keyCount];
+            fullUpdate = SimulationNotification.fullUpdate(values.clone(), -1, System.nanoTime());
+        }
+
+        public SimulationNotification getFullUpdate()
+        {
+            return fullUpdate;
+        }
+
+        public void onEvent(final SimulationNotification event, final long sequence, final boolean endOfBatch) throws Exception
+        {
+            values[event.getKey()] = event.getValue();
+            lastPublishTimeNanos = event.getPublishTimeNanos();
+            if (endOfBatch)
+            {
+                fullUpdate = SimulationNotification.fullUpdate(values.clone(), sequence, lastPublishTimeNanos);
+            }
+        }
+    }
+}
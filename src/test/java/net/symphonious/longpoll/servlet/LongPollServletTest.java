@@ -0,0 +1,488 @@
+package net.symphonious.longpoll.servlet;
+
+import net.symphonious.longpoll.NotificationChannel;
+import net.symphonious.longpoll.TestFullUpdateBuilder;
+import net.symphonious.longpoll.TestShardedFullUpdateBuilder;
+import net.symphonious.longpoll.TestValue;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.*;
+
+public class LongPollServletTest
+{
+    private static final String NOTIFICATIONS_SENT_ATTRIBUTE = "notificationsSent";
+    private static final long RECONNECT_WINDOW_MILLIS = 5000;
+
+    private AbstractLongPollServlet<TestValue> servlet;
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (servlet != null)
+        {
+            servlet.destroy();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionIfMaximumConcurrentFullUpdatesIsLessThanOne() throws Exception
+    {
+        new TestServlet(0, 1, RECONNECT_WINDOW_MILLIS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionIfMaximumParkedClientsIsLessThanOne() throws Exception
+    {
+        new TestServlet(1, 0, RECONNECT_WINDOW_MILLIS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowExceptionIfReconnectWindowIsLessThanOneMillisecond() throws Exception
+    {
+        new TestServlet(1, 1, 0);
+    }
+
+    @Test
+    public void shouldNotRequireFullUpdateBuilderWhenNotificationChannelIsCreatedBySubclass() throws Exception
+    {
+        final TestShardedFullUpdateBuilder fullUpdateBuilder = new TestShardedFullUpdateBuilder(2, 2);
+        servlet = new AbstractLongPollServlet<TestValue>(16, 8)
+        {
+            @Override
+            protected NotificationChannel<TestValue> createNotificationChannel(final int maximumNotificationBufferSize,
+                                                                             final long maximumUpdatesToSend)
+            {
+                return new NotificationChannel<TestValue>(fullUpdateBuilder, maximumNotificationBufferSize, maximumUpdatesToSend);
+            }
+
+            @Override
+            protected void sendNotifications(final HttpServletRequest request, final HttpServletResponse response,
+                                             final Collection<TestValue> notificationsToSend)
+            {
+                recordNotificationsSent(request, notificationsToSend);
+            }
+        };
+        servlet.init();
+        for (int i = 0; i < 20; i++)
+        {
+            servlet.getNotificationChannel().publish(new TestValue(i % 2 + "=" + i));
+        }
+        fullUpdateBuilder.waitForFullUpdateSequenceToReach(19);
+
+        final StubRequest request = new StubRequest();
+        servlet.doGet(request.proxy, new StubResponse().proxy);
+
+        final Collection<TestValue> notificationsSent = request.getNotificationsSent();
+        assertThat(notificationsSent.size(), is(1));
+        assertThat(notificationsSent.iterator().next().getValue(), is("0=18,1=19"));
+    }
+
+    @Test
+    public void shouldAskClientToRetryLaterWhenFullUpdateLimitIsReached() throws Exception
+    {
+        final TestServlet servlet = createServlet(1, Integer.MAX_VALUE);
+        publish(servlet, 20);
+        final Thread fullUpdateRequest = holdFullUpdatePermit(servlet);
+
+        final StubResponse response = new StubResponse();
+        final StubRequest request = new StubRequest();
+        servlet.doGet(request.proxy, response.proxy);
+
+        assertRetryLater(response);
+        assertNull(request.getNotificationsSent());
+
+        releaseFullUpdatePermit(servlet, fullUpdateRequest);
+        final StubRequest retryRequest = new StubRequest();
+        final StubResponse retryResponse = new StubResponse();
+        servlet.doGet(retryRequest.proxy, retryResponse.proxy);
+        assertThat(retryResponse.status, is(HttpServletResponse.SC_OK));
+        assertThat(retryRequest.getNotificationsSent().size(), is(1));
+    }
+
+    @Test
+    public void shouldNotRequireFullUpdatePermitForClientsWhichAreUpToDate() throws Exception
+    {
+        final TestServlet servlet = createServlet(1, Integer.MAX_VALUE);
+        publish(servlet, 20);
+        final Thread fullUpdateRequest = holdFullUpdatePermit(servlet);
+
+        final StubRequest request = new StubRequest();
+        request.parameters.put("lastSequence", "18");
+        final StubResponse response = new StubResponse();
+        servlet.doGet(request.proxy, response.proxy);
+
+        assertThat(response.status, is(HttpServletResponse.SC_OK));
+        assertFalse(request.getNotificationsSent().contains(servlet.fullUpdateBuilder.getFullUpdate()));
+
+        releaseFullUpdatePermit(servlet, fullUpdateRequest);
+    }
+
+    @Test
+    public void shouldJitterReconnectDelayWithinReconnectWindow() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        park(servlet);
+
+        long minimumDelay = Long.MAX_VALUE;
+        long maximumDelay = Long.MIN_VALUE;
+        for (int i = 0; i < 200; i++)
+        {
+            final StubResponse response = new StubResponse();
+            servlet.doGet(new StubRequest().proxy, response.proxy);
+            final long delay = assertRetryLater(response);
+            minimumDelay = Math.min(minimumDelay, delay);
+            maximumDelay = Math.max(maximumDelay, delay);
+        }
+        assertTrue("Reconnect delays were not spread across the window: " + minimumDelay + "-" + maximumDelay,
+                   maximumDelay - minimumDelay > RECONNECT_WINDOW_MILLIS / 2);
+    }
+
+    @Test
+    public void shouldLimitParkedClientsUntilParkedClientIsDispatched() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        final StubRequest parkedRequest = park(servlet);
+
+        final StubResponse rejectedResponse = new StubResponse();
+        servlet.doGet(new StubRequest().proxy, rejectedResponse.proxy);
+        assertRetryLater(rejectedResponse);
+
+        publish(servlet, 1);
+        assertDispatched(parkedRequest.asyncContext);
+        servlet.doGet(parkedRequest.proxy, new StubResponse().proxy);
+        assertThat(parkedRequest.getNotificationsSent().size(), is(1));
+
+        final StubRequest request = new StubRequest();
+        request.parameters.put("lastSequence", "0");
+        final StubResponse response = new StubResponse();
+        servlet.doGet(request.proxy, response.proxy);
+        assertThat(response.status, is(HttpServletResponse.SC_OK));
+        assertTrue("Client was not parked.", request.asyncStarted);
+    }
+
+    @Test
+    public void shouldReleaseParkedClientSlotIfRequestCannotBeParked() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        final StubRequest request = new StubRequest();
+        request.asyncSupported = false;
+        try
+        {
+            servlet.doGet(request.proxy, new StubResponse().proxy);
+            fail("Expected IllegalStateException from startAsync.");
+        }
+        catch (IllegalStateException e)
+        {
+            // Expected.
+        }
+
+        assertParkedClientsAreLimitedToOne(servlet);
+    }
+
+    @Test
+    public void shouldReleaseParkedClientAndWaitingThreadOnTimeout() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        final StubAsyncContext asyncContext = park(servlet).asyncContext;
+        final AsyncListener listener = asyncContext.listeners.get(0);
+
+        listener.onTimeout(null);
+        listener.onTimeout(null);
+
+        assertWaitingThreadEndedWithoutDispatch(servlet, asyncContext);
+        assertParkedClientsAreLimitedToOne(servlet);
+    }
+
+    @Test
+    public void shouldReleaseParkedClientAndWaitingThreadOnError() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        final StubAsyncContext asyncContext = park(servlet).asyncContext;
+        final AsyncListener listener = asyncContext.listeners.get(0);
+
+        listener.onError(null);
+        listener.onComplete(null);
+
+        assertWaitingThreadEndedWithoutDispatch(servlet, asyncContext);
+        assertParkedClientsAreLimitedToOne(servlet);
+    }
+
+    @Test
+    public void shouldNotReleaseParkedClientAgainWhenCompletedAfterDispatch() throws Exception
+    {
+        final TestServlet servlet = createServlet(Integer.MAX_VALUE, 1);
+        final StubRequest parkedRequest = park(servlet);
+        publish(servlet, 1);
+        assertDispatched(parkedRequest.asyncContext);
+        servlet.doGet(parkedRequest.proxy, new StubResponse().proxy);
+
+        parkedRequest.asyncContext.listeners.get(0).onComplete(null);
+
+        assertParkedClientsAreLimitedToOne(servlet);
+    }
+
+    private TestServlet createServlet(final int maximumConcurrentFullUpdates, final int maximumParkedClients) throws Exception
+    {
+        final TestServlet servlet = new TestServlet(maximumConcurrentFullUpdates, maximumParkedClients, RECONNECT_WINDOW_MILLIS);
+        servlet.init();
+        this.servlet = servlet;
+        return servlet;
+    }
+
+    private void publish(final TestServlet servlet, final int count)
+    {
+        final long firstSequence = servlet.publishedCount;
+        for (int i = 0; i < count; i++)
+        {
+            servlet.getNotificationChannel().publish(new TestValue(String.valueOf(servlet.publishedCount++)));
+        }
+        servlet.fullUpdateBuilder.waitForSequenceToReach(firstSequence + count - 1);
+    }
+
+    private StubRequest park(final TestServlet servlet) throws Exception
+    {
+        final StubRequest request = new StubRequest();
+        request.parameters.put("lastSequence", String.valueOf(servlet.publishedCount - 1));
+        final StubResponse response = new StubResponse();
+        servlet.doGet(request.proxy, response.proxy);
+        assertThat(response.status, is(HttpServletResponse.SC_OK));
+        assertTrue("Client was not parked.", request.asyncStarted);
+        return request;
+    }
+
+    private void assertParkedClientsAreLimitedToOne(final TestServlet servlet) throws Exception
+    {
+        park(servlet);
+        final StubResponse response = new StubResponse();
+        servlet.doGet(new StubRequest().proxy, response.proxy);
+        assertRetryLater(response);
+    }
+
+    private Thread holdFullUpdatePermit(final TestServlet servlet) throws Exception
+    {
+        servlet.blockFullUpdates = true;
+        final Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    servlet.doGet(new StubRequest().proxy, new StubResponse().proxy);
+                }
+                catch (Exception e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        assertTrue("Full update was not started.", servlet.fullUpdateStarted.await(5, TimeUnit.SECONDS));
+        return thread;
+    }
+
+    private void releaseFullUpdatePermit(final TestServlet servlet, final Thread fullUpdateRequest) throws Exception
+    {
+        servlet.blockFullUpdates = false;
+        servlet.releaseFullUpdate.countDown();
+        fullUpdateRequest.join(5000);
+    }
+
+    private long assertRetryLater(final StubResponse response)
+    {
+        assertThat(response.status, is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        final long delay = Long.parseLong(response.headers.get(LongPollServlet.RECONNECT_DELAY_HEADER));
+        assertTrue("Reconnect delay " + delay + " is outside the reconnect window.", delay >= 0 && delay < RECONNECT_WINDOW_MILLIS);
+        assertThat(response.headers.get("Retry-After"), is(String.valueOf(Math.max(1, (delay + 999) / 1000))));
+        return delay;
+    }
+
+    private void assertWaitingThreadEndedWithoutDispatch(final TestServlet servlet, final StubAsyncContext asyncContext) throws Exception
+    {
+        asyncContext.startedThread.join(3000);
+        assertFalse("Waiting thread is still blocked.", asyncContext.startedThread.isAlive());
+
+        publish(servlet, 1);
+        Thread.sleep(100);
+        assertFalse("Context was dispatched after it timed out.", asyncContext.dispatched);
+    }
+
+    private void assertDispatched(final StubAsyncContext asyncContext)
+    {
+        final long waitStartTime = System.currentTimeMillis();
+        while (!asyncContext.dispatched && System.currentTimeMillis() - waitStartTime < 3000)
+        {
+            Thread.yield();
+        }
+        assertTrue("Context was not dispatched once message was received.", asyncContext.dispatched);
+    }
+
+    private static void recordNotificationsSent(final HttpServletRequest request, final Collection<TestValue> notificationsToSend)
+    {
+        request.setAttribute(NOTIFICATIONS_SENT_ATTRIBUTE, new ArrayList<TestValue>(notificationsToSend));
+    }
+
+    private static class TestServlet extends LongPollServlet<TestValue>
+    {
+        final TestFullUpdateBuilder fullUpdateBuilder = new TestFullUpdateBuilder();
+        final CountDownLatch fullUpdateStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFullUpdate = new CountDownLatch(1);
+        volatile boolean blockFullUpdates;
+        int publishedCount;
+
+        public TestServlet(final int maximumConcurrentFullUpdates, final int maximumParkedClients, final long reconnectWindowMillis)
+        {
+            super(16, 8, "lastSequence", maximumConcurrentFullUpdates, maximumParkedClients, reconnectWindowMillis);
+        }
+
+        @Override
+        protected void sendNotifications(final HttpServletRequest request, final HttpServletResponse response,
+                                         final Collection<TestValue> notificationsToSend)
+        throws ServletException, IOException
+        {
+            recordNotificationsSent(request, notificationsToSend);
+            if (blockFullUpdates && notificationsToSend.contains(fullUpdateBuilder.getFullUpdate()))
+            {
+                fullUpdateStarted.countDown();
+                try
+                {
+                    releaseFullUpdate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        protected TestFullUpdateBuilder getFullUpdateBuilder()
+        {
+            return fullUpdateBuilder;
+        }
+    }
+
+    private static class StubRequest implements InvocationHandler
+    {
+        final Map<String, String> parameters = new HashMap<String, String>();
+        final Map<String, Object> attributes = Collections.synchronizedMap(new HashMap<String, Object>());
+        final StubAsyncContext asyncContext = new StubAsyncContext();
+        volatile boolean asyncStarted;
+        volatile boolean asyncSupported = true;
+        final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                                     new Class<?>[] {HttpServletRequest.class}, this);
+
+        @SuppressWarnings("unchecked")
+        Collection<TestValue> getNotificationsSent()
+        {
+            return (Collection<TestValue>) attributes.get(NOTIFICATIONS_SENT_ATTRIBUTE);
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if (name.equals("getParameter"))
+            {
+                return parameters.get((String) args[0]);
+            }
+            if (name.equals("getAttribute"))
+            {
+                return attributes.get((String) args[0]);
+            }
+            if (name.equals("setAttribute"))
+            {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            }
+            if (name.equals("removeAttribute"))
+            {
+                attributes.remove((String) args[0]);
+                return null;
+            }
+            if (name.equals("startAsync"))
+            {
+                if (!asyncSupported)
+                {
+                    throw new IllegalStateException("Async is not supported.");
+                }
+                asyncStarted = true;
+                return asyncContext.proxy;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static class StubResponse implements InvocationHandler
+    {
+        volatile int status = HttpServletResponse.SC_OK;
+        final Map<String, String> headers = new HashMap<String, String>();
+        final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                                       new Class<?>[] {HttpServletResponse.class}, this);
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if (name.equals("setStatus"))
+            {
+                status = (Integer) args[0];
+                return null;
+            }
+            if (name.equals("setHeader"))
+            {
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+            }
+            if (name.equals("setContentLength"))
+            {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private static class StubAsyncContext implements InvocationHandler
+    {
+        final List<AsyncListener> listeners = new CopyOnWriteArrayList<AsyncListener>();
+        volatile boolean dispatched;
+        volatile Thread startedThread;
+        final AsyncContext proxy = (AsyncContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+                                                                         new Class<?>[] {AsyncContext.class}, this);
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if (name.equals("addListener") && args.length == 1)
+            {
+                listeners.add((AsyncListener) args[0]);
+                return null;
+            }
+            if (name.equals("start"))
+            {
+                startedThread = new Thread((Runnable) args[0]);
+                startedThread.start();
+                return null;
+            }
+            if (name.equals("dispatch") && args == null)
+            {
+                dispatched = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}